@@ -0,0 +1,101 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.io.Resources;
+
+/**
+ * Shared fixtures of the benchmarks: sample PAC files, request targets and a resolver answering from a static host
+ * list, so results do not depend on the network.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Installs a resolver for the PAC functions which only knows the hosts of hosts.txt.
+     */
+    static void installStubResolver() throws IOException {
+        Map<String, InetAddress[]> hosts = new HashMap<>();
+        for (String line : lines("/hosts.txt")) {
+            String[] entry = line.split("\\s+");
+            hosts.put(entry[0], new InetAddress[] { InetAddress.getByAddress(entry[0], IpAddresses.parse(entry[1])) });
+        }
+        PacFunctions.setResolver(new DnsResolver(host -> {
+            InetAddress[] addresses = hosts.get(host);
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        }, 3600, 3600, 1000, 1));
+    }
+
+    /**
+     * Returns the first host name known to the stub resolver.
+     */
+    static String knownHost() throws IOException {
+        return lines("/hosts.txt").get(0).split("\\s+")[0];
+    }
+
+    /**
+     * Returns the request targets of urls.txt.
+     */
+    static List<String> urls() throws IOException {
+        return lines("/urls.txt");
+    }
+
+    /**
+     * Copies the given sample PAC file to a temporary file and returns its path.
+     * 
+     * @param name small, medium or large
+     */
+    static Path pacFile(String name) throws IOException {
+        Path file = Files.createTempFile("pacproxy-" + name, ".pac");
+        file.toFile().deleteOnExit();
+        try (InputStream in = BenchmarkSupport.class.getResourceAsStream("/pac/" + name + ".pac")) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    private static List<String> lines(String resource) throws IOException {
+        URL url = BenchmarkSupport.class.getResource(resource);
+        List<String> lines = new ArrayList<>();
+        for (String line : Resources.readLines(url, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the individual PAC functions as called from scripts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PacFunctionsBenchmark {
+
+    private String host = "www.uniform-xray.org";
+
+    private String resolvableHost;
+
+    private String url = "http://intranet.corp.example/portal/index.html";
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.installStubResolver();
+        resolvableHost = BenchmarkSupport.knownHost();
+        PacFunctions.dnsResolve(resolvableHost);
+    }
+
+    @Benchmark
+    public boolean shExpMatchSuffix() {
+        return PacFunctions.shExpMatch(host, "*.uniform-xray.org");
+    }
+
+    @Benchmark
+    public boolean shExpMatchPrefix() {
+        return PacFunctions.shExpMatch(url, "http://intranet.*");
+    }
+
+    @Benchmark
+    public boolean shExpMatchGlob() {
+        return PacFunctions.shExpMatch(url, "http://*.corp.???????/*/index.*");
+    }
+
+    @Benchmark
+    public boolean isInNetLiteral() {
+        return PacFunctions.isInNet("10.20.30.40", "10.20.0.0", "255.255.0.0");
+    }
+
+    @Benchmark
+    public boolean isInNetResolved() {
+        return PacFunctions.isInNet(resolvableHost, "10.0.0.0", "255.0.0.0");
+    }
+
+    @Benchmark
+    public boolean isInNetEx() {
+        return PacFunctions.isInNetEx("2001:db8:1:2::10", "2001:db8::/32");
+    }
+
+    @Benchmark
+    public boolean dnsDomainIs() {
+        return PacFunctions.dnsDomainIs(host, ".uniform-xray.org");
+    }
+
+    @Benchmark
+    public int dnsDomainLevels() {
+        return PacFunctions.dnsDomainLevels(host);
+    }
+}
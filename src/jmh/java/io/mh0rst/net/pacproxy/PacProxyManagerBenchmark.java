@@ -0,0 +1,101 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * End-to-end cost of {@link PacProxyManager#lookupChainedProxies(HttpRequest, Queue)} for the sample PAC files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PacProxyManagerBenchmark {
+
+    @Param({ "small", "medium", "large" })
+    public String pac;
+
+    @Param({ "false", "true" })
+    public boolean compileRules;
+
+    @Param({ "0", "10000" })
+    public int decisionCache;
+
+    /**
+     * Script backend by option name, other backends need their profile, e.g. -Pbenchmark,graaljs -p backend=graaljs.
+     */
+    @Param({ "nashorn" })
+    public String backend;
+
+    private PacProxyManager manager;
+
+    private List<HttpRequest> requests;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.installStubResolver();
+        manager = new PacProxyManager(BenchmarkSupport.pacFile(pac).toString(), 1, compileRules,
+                                      SecureScriptEngine.Backend.forOptionName(backend));
+        if (decisionCache > 0) {
+            manager.setDecisionCache(new DecisionCache(decisionCache, 3600, DecisionCache.HOST_ONLY));
+        }
+        requests = new ArrayList<>();
+        for (String url : BenchmarkSupport.urls()) {
+            HttpMethod method = url.contains("://") ? HttpMethod.GET : HttpMethod.CONNECT;
+            requests.add(new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, url));
+        }
+        // fill the stub resolver cache, the benchmark measures PAC evaluation and not the resolver threads
+        lookupAll();
+    }
+
+    @Benchmark
+    public Queue<ChainedProxy> lookupAll() {
+        Queue<ChainedProxy> proxies = new ArrayDeque<>();
+        for (HttpRequest request : requests) {
+            manager.lookupChainedProxies(request, proxies);
+            proxies.clear();
+        }
+        return proxies;
+    }
+}
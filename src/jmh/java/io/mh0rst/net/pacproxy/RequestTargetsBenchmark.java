@@ -0,0 +1,65 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of extracting the host of a request target with {@link RequestTargets#host(String)} compared to the previous
+ * URI based parsing. Run with -prof gc to see the bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestTargetsBenchmark {
+
+    @Param({ "www.example.com:443", "http://www.example.com/index.html?q=1", "[2001:db8::1]:443" })
+    public String target;
+
+    @Benchmark
+    public String requestTargets() {
+        return RequestTargets.host(target);
+    }
+
+    @Benchmark
+    public String uriAndSplit() {
+        String host = null;
+        try {
+            host = new URI(target).getHost();
+        } catch (URISyntaxException e) {
+            // CONNECT targets are no URIs
+        }
+        return host == null ? target.split(":")[0] : host;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link SubnetPattern#isInMask(byte[])} for IPv4 and IPv6 subnets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubnetPatternBenchmark {
+
+    private SubnetPattern ipv4Subnet = SubnetPattern.forMask("172.16.0.0", "255.240.0.0");
+
+    private SubnetPattern ipv6Subnet = SubnetPattern.forPrefix("2001:db8:ab00::/40");
+
+    private byte[] ipv4Address = IpAddresses.parse("172.20.1.2");
+
+    private byte[] ipv6Address = IpAddresses.parse("2001:db8:ab12::1");
+
+    @Benchmark
+    public boolean isInMaskIPv4() {
+        return ipv4Subnet.isInMask(ipv4Address);
+    }
+
+    @Benchmark
+    public boolean isInMaskIPv6() {
+        return ipv6Subnet.isInMask(ipv6Address);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes one line per request with the routing decision to a file. Requests only put an entry into a ring buffer, a
+ * background thread formats and writes them and rotates the file by size. If the buffer is full, entries are dropped
+ * instead of slowing down requests.
+ * <p>
+ * The tab separated fields are: time in milliseconds since the epoch, host, decision cache (HIT, MISS or - if
+ * disabled), lookup time in microseconds, chosen upstream and the complete decision.
+ */
+public class AccessLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Path file;
+
+    private final long maxBytes;
+
+    private final int maxFiles;
+
+    private final RingBuffer<Entry> entries = new RingBuffer<>(BUFFER_SIZE);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    private Writer writer;
+
+    private long bytes;
+
+    /**
+     * Creates a new access log.
+     * 
+     * @param file
+     * @param maxBytes Size after which the file is rotated
+     * @param maxFiles Number of rotated files to keep
+     */
+    public AccessLog(Path file, long maxBytes, int maxFiles) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Opens the file and starts the writer thread.
+     * 
+     * @throws IOException if the file cannot be opened
+     */
+    public void start() throws IOException {
+        open();
+        Thread thread = new Thread(this::write, "PacProxy-AccessLog");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "PacProxy-AccessLog-Flush"));
+    }
+
+    /**
+     * Records a request.
+     * 
+     * @param host
+     * @param cacheHit Whether the decision came from the decision cache, null if caching is disabled
+     * @param lookupNanos
+     * @param upstream The upstream tried first
+     * @param decision The proxies returned by the PAC file, null if the evaluation failed
+     */
+    public void record(String host, Boolean cacheHit, long lookupNanos, ChainedProxy upstream,
+                       List<ChainedProxy> decision) {
+        if (!entries.offer(new Entry(System.currentTimeMillis(), host, cacheHit, lookupNanos, upstream, decision))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of entries dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes all buffered entries, returns false if there were none.
+     */
+    private synchronized boolean drain() {
+        boolean written = false;
+        try {
+            for (Entry entry = entries.poll(); entry != null; entry = entries.poll()) {
+                format(entry);
+                writer.write(line.toString());
+                bytes += line.length();
+                written = true;
+                if (bytes >= maxBytes) {
+                    rotate();
+                }
+            }
+            if (written) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            LOG.error("Could not write access log " + file, e);
+        }
+        return written;
+    }
+
+    private void format(Entry entry) {
+        line.setLength(0);
+        line.append(entry.time).append('\t').append(entry.host).append('\t');
+        line.append(entry.cacheHit == null ? "-" : entry.cacheHit ? "HIT" : "MISS").append('\t');
+        line.append(entry.lookupNanos / 1000).append('\t');
+        line.append(describe(entry.upstream)).append('\t');
+        if (entry.decision == null) {
+            line.append("ERROR");
+        } else if (entry.decision.isEmpty()) {
+            line.append("NONE");
+        } else {
+            for (int i = 0; i < entry.decision.size(); i++) {
+                if (i > 0) {
+                    line.append("; ");
+                }
+                line.append(describe(entry.decision.get(i)));
+            }
+        }
+        line.append('\n');
+    }
+
+    private static String describe(ChainedProxy proxy) {
+        if (proxy == null) {
+            return "-";
+        }
+        return proxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION ? "DIRECT" : proxy.toString();
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                                                                                 StandardOpenOption.APPEND),
+                                                           StandardCharsets.UTF_8));
+        bytes = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private static class Entry {
+
+        private final long time;
+
+        private final String host;
+
+        private final Boolean cacheHit;
+
+        private final long lookupNanos;
+
+        private final ChainedProxy upstream;
+
+        private final List<ChainedProxy> decision;
+
+        public Entry(long time, String host, Boolean cacheHit, long lookupNanos, ChainedProxy upstream,
+                     List<ChainedProxy> decision) {
+            this.time = time;
+            this.host = host;
+            this.cacheHit = cacheHit;
+            this.lookupNanos = lookupNanos;
+            this.upstream = upstream;
+            this.decision = decision;
+        }
+    }
+}
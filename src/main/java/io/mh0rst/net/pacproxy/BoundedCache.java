@@ -0,0 +1,170 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A concurrent map with a maximum size. Lookups take no lock, they only record the time of the access. When a put
+ * makes the map overflow, one thread removes the least recently used entries down to nine tenths of the maximum size,
+ * so the cost of the eviction is spread over many puts.
+ */
+final class BoundedCache<K, V> {
+
+    private final ConcurrentMap<K, Node<V>> entries = new ConcurrentHashMap<>();
+
+    private final int maxEntries;
+
+    private final int retainedEntries;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * Creates a new cache.
+     * 
+     * @param maxEntries Maximum number of entries, on overflow the least recently used tenth is evicted
+     */
+    BoundedCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.retainedEntries = maxEntries - maxEntries / 10;
+    }
+
+    /**
+     * Returns the value of the given key or null.
+     * 
+     * @param key
+     */
+    V get(K key) {
+        Node<V> node = entries.get(key);
+        if (node == null) {
+            return null;
+        }
+        node.lastAccess = System.nanoTime();
+        return node.value;
+    }
+
+    /**
+     * Sets the value of the given key.
+     * 
+     * @param key
+     * @param value
+     */
+    void put(K key, V value) {
+        entries.put(key, new Node<>(value));
+        evictIfFull();
+    }
+
+    /**
+     * Returns the value of the given key, computing and adding it if there is none.
+     * 
+     * @param key
+     * @param function Computes the value, must not return null
+     */
+    V computeIfAbsent(K key, Function<? super K, ? extends V> function) {
+        Node<V> node = entries.get(key);
+        if (node == null) {
+            node = entries.computeIfAbsent(key, k -> new Node<>(function.apply(k)));
+            evictIfFull();
+        } else {
+            node.lastAccess = System.nanoTime();
+        }
+        return node.value;
+    }
+
+    /**
+     * Removes the given key if it has the given value.
+     * 
+     * @param key
+     * @param value
+     */
+    void remove(K key, V value) {
+        entries.computeIfPresent(key, (k, node) -> node.value == value ? null : node);
+    }
+
+    /**
+     * Calls the given action for each value, without counting it as an access.
+     * 
+     * @param action
+     */
+    void forEachValue(Consumer<? super V> action) {
+        for (Node<V> node : entries.values()) {
+            action.accept(node.value);
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private void evictIfFull() {
+        // the evicting thread checks the size again after it finished, so an overflow during the eviction is not lost
+        while (entries.size() > maxEntries && evicting.compareAndSet(false, true)) {
+            try {
+                evict();
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    private void evict() {
+        long[] accesses = new long[entries.size()];
+        int count = 0;
+        for (Node<V> node : entries.values()) {
+            if (count == accesses.length) {
+                break;
+            }
+            accesses[count++] = node.lastAccess;
+        }
+        int excess = count - retainedEntries;
+        if (excess > 0) {
+            Arrays.sort(accesses, 0, count);
+            long threshold = accesses[excess - 1];
+            entries.values().removeIf(node -> node.lastAccess - threshold <= 0);
+        }
+    }
+
+    private static class Node<V> {
+
+        private final V value;
+
+        private volatile long lastAccess = System.nanoTime();
+
+        Node(V value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A PAC file compiled by {@link PacCompiler} into a tree of Java rules, evaluated without any script engine. The PAC
+ * functions are called directly on {@link PacFunctions}, so decisions are identical to the scripted evaluation.
+ */
+public class CompiledPac implements PacEvaluator {
+
+    private static final String NO_RESULT = new String("undefined");
+
+    private final Statement body;
+
+    private final String summary;
+
+    CompiledPac(Statement body, String summary) {
+        this.body = body;
+        this.summary = summary;
+    }
+
+    @Override
+    public String findProxyForURL(String url, String host) {
+        String result = body.execute(url, host);
+        return result == NO_RESULT ? null : result;
+    }
+
+    /**
+     * Returns a short description of the compiled rules.
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * A string value computed from the FindProxyForURL arguments.
+     */
+    interface Value {
+
+        String get(String url, String host);
+    }
+
+    /**
+     * A number computed from the FindProxyForURL arguments.
+     */
+    interface IntValue {
+
+        int get(String url, String host);
+    }
+
+    /**
+     * A boolean expression of the FindProxyForURL arguments.
+     */
+    interface Condition {
+
+        boolean test(String url, String host);
+    }
+
+    /**
+     * A statement of FindProxyForURL, returning the PAC result or NO_RESULT if it does not return.
+     */
+    interface Statement {
+
+        String execute(String url, String host);
+    }
+
+    static class Parameter implements Value {
+
+        private final boolean url;
+
+        private final String name;
+
+        Parameter(boolean url, String name) {
+            this.url = url;
+            this.name = name;
+        }
+
+        @Override
+        public String get(String urlArgument, String hostArgument) {
+            return url ? urlArgument : hostArgument;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Literal implements Value {
+
+        private final String value;
+
+        Literal(String value) {
+            this.value = value;
+        }
+
+        String value() {
+            return value;
+        }
+
+        @Override
+        public String get(String url, String host) {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return '"' + value + '"';
+        }
+    }
+
+    static class Substring implements Value {
+
+        private final Value string;
+
+        private final int start;
+
+        private final int end;
+
+        /**
+         * @param end End index or -1 for the end of the string
+         */
+        Substring(Value string, int start, int end) {
+            this.string = string;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String get(String url, String host) {
+            String value = string.get(url, host);
+            if (value == null) {
+                return null;
+            }
+            // JavaScript semantics: clamp both indices and swap them if necessary
+            int from = Math.min(Math.max(start, 0), value.length());
+            int to = end == -1 ? value.length() : Math.min(Math.max(end, 0), value.length());
+            return value.substring(Math.min(from, to), Math.max(from, to));
+        }
+
+        @Override
+        public String toString() {
+            return string + ".substring(" + start + (end == -1 ? "" : ", " + end) + ")";
+        }
+    }
+
+    static class LowerCase implements Value {
+
+        private final Value string;
+
+        LowerCase(Value string) {
+            this.string = string;
+        }
+
+        @Override
+        public String get(String url, String host) {
+            String value = string.get(url, host);
+            return value == null ? null : value.toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public String toString() {
+            return string + ".toLowerCase()";
+        }
+    }
+
+    static class Call implements Value {
+
+        private final String name;
+
+        private final Value argument;
+
+        Call(String name, Value argument) {
+            this.name = name;
+            this.argument = argument;
+        }
+
+        @Override
+        public String get(String url, String host) {
+            switch (name) {
+            case "dnsResolve":
+                return PacFunctions.dnsResolve(argument.get(url, host));
+            case "myIpAddress":
+                return PacFunctions.myIpAddress();
+            default:
+                throw new IllegalStateException("Unsupported function " + name);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + (argument == null ? "" : argument) + ")";
+        }
+    }
+
+    static class Or implements Condition {
+
+        private final Condition[] conditions;
+
+        Or(List<Condition> conditions) {
+            this.conditions = conditions.toArray(new Condition[conditions.size()]);
+        }
+
+        @Override
+        public boolean test(String url, String host) {
+            for (Condition condition : conditions) {
+                if (condition.test(url, host)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class And implements Condition {
+
+        private final Condition[] conditions;
+
+        And(List<Condition> conditions) {
+            this.conditions = conditions.toArray(new Condition[conditions.size()]);
+        }
+
+        @Override
+        public boolean test(String url, String host) {
+            for (Condition condition : conditions) {
+                if (!condition.test(url, host)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Equals implements Condition {
+
+        private final Value left;
+
+        private final Value right;
+
+        Equals(Value left, Value right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(String url, String host) {
+            return Objects.equals(left.get(url, host), right.get(url, host));
+        }
+    }
+
+    /**
+     * dnsDomainIs(value, "literal")
+     */
+    static class DomainIs implements Condition {
+
+        final Value host;
+
+        final String domain;
+
+        DomainIs(Value host, String domain) {
+            this.host = host;
+            this.domain = domain;
+        }
+
+        @Override
+        public boolean test(String url, String hostArgument) {
+            return PacFunctions.dnsDomainIs(host.get(url, hostArgument), domain);
+        }
+    }
+
+    /**
+     * Any number of dnsDomainIs(value, "literal") clauses combined with || or dnsDomainIsAny(value, "literal"). Counts
+     * as one call of the function in the metrics.
+     */
+    static class DomainSet implements Condition {
+
+        private final PacMetrics.Function function;
+
+        private final Value host;
+
+        private final DomainSuffixTrie domains;
+
+        DomainSet(PacMetrics.Function function, Value host, DomainSuffixTrie domains) {
+            this.function = function;
+            this.host = host;
+            this.domains = domains;
+        }
+
+        @Override
+        public boolean test(String url, String hostArgument) {
+            long start = PacMetrics.start();
+            try {
+                return domains.matches(host.get(url, hostArgument));
+            } finally {
+                PacMetrics.recordFunction(function, start);
+            }
+        }
+    }
+
+    /**
+     * shExpMatch(value, "literal")
+     */
+    static class ShExpMatch implements Condition {
+
+        final Value str;
+
+        final ShellExpression expression;
+
+        ShExpMatch(Value str, ShellExpression expression) {
+            this.str = str;
+            this.expression = expression;
+        }
+
+        @Override
+        public boolean test(String url, String host) {
+            long start = PacMetrics.start();
+            try {
+                String value = str.get(url, host);
+                return value != null && expression.matches(value);
+            } finally {
+                PacMetrics.recordFunction(PacMetrics.Function.SH_EXP_MATCH, start);
+            }
+        }
+    }
+
+    /**
+     * Any number of shExpMatch(value, "literal") clauses combined with ||. Counts as one call of shExpMatch in the
+     * metrics.
+     */
+    static class GlobList implements Condition {
+
+        private final Value str;
+
+        private final ShellExpression[] expressions;
+
+        GlobList(Value str, List<ShellExpression> expressions) {
+            this.str = str;
+            this.expressions = expressions.toArray(new ShellExpression[expressions.size()]);
+        }
+
+        @Override
+        public boolean test(String url, String host) {
+            long start = PacMetrics.start();
+            try {
+                String value = str.get(url, host);
+                if (value == null) {
+                    return false;
+                }
+                for (ShellExpression expression : expressions) {
+                    if (expression.matches(value)) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                PacMetrics.recordFunction(PacMetrics.Function.SH_EXP_MATCH, start);
+            }
+        }
+    }
+
+    /**
+     * isInNet(value, "pattern", "mask") or isInNetEx(value, "prefix")
+     */
+    static class InNet implements Condition {
+
+        final PacMetrics.Function function;
+
+        final Value host;
+
+        final SubnetPattern subnet;
+
+        InNet(PacMetrics.Function function, Value host, SubnetPattern subnet) {
+            this.function = function;
+            this.host = host;
+            this.subnet = subnet;
+        }
+
+        @Override
+        public boolean test(String url, String hostArgument) {
+            long start = PacMetrics.start();
+            try {
+                String value = host.get(url, hostArgument);
+                if (value == null || value.isEmpty()) {
+                    return false;
+                }
+                byte[] address = PacFunctions.addressOf(value, subnet.getAddressLength());
+                return address != null && subnet.isInMask(address);
+            } finally {
+                PacMetrics.recordFunction(function, start);
+            }
+        }
+    }
+
+    /**
+     * Any number of isInNet clauses on the same value combined with ||. The value is resolved at most once per
+     * address family. Counts as one call of the function of the first clause in the metrics.
+     */
+    static class SubnetTable implements Condition {
+
+        private final PacMetrics.Function function;
+
+        private final Value host;
+
+        private final SubnetPattern[] subnets;
+
+        SubnetTable(PacMetrics.Function function, Value host, List<SubnetPattern> subnets) {
+            this.function = function;
+            this.host = host;
+            this.subnets = subnets.toArray(new SubnetPattern[subnets.size()]);
+        }
+
+        @Override
+        public boolean test(String url, String hostArgument) {
+            long start = PacMetrics.start();
+            try {
+                return matches(host.get(url, hostArgument));
+            } finally {
+                PacMetrics.recordFunction(function, start);
+            }
+        }
+
+        private boolean matches(String value) {
+            if (value == null || value.isEmpty()) {
+                return false;
+            }
+            byte[] ipv4 = null;
+            byte[] ipv6 = null;
+            boolean ipv4Resolved = false;
+            boolean ipv6Resolved = false;
+            for (SubnetPattern subnet : subnets) {
+                byte[] address;
+                if (subnet.getAddressLength() == 4) {
+                    if (!ipv4Resolved) {
+                        ipv4 = PacFunctions.addressOf(value, 4);
+                        ipv4Resolved = true;
+                    }
+                    address = ipv4;
+                } else {
+                    if (!ipv6Resolved) {
+                        ipv6 = PacFunctions.addressOf(value, 16);
+                        ipv6Resolved = true;
+                    }
+                    address = ipv6;
+                }
+                if (address != null && subnet.isInMask(address)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class If implements Statement {
+
+        private final Condition condition;
+
+        private final Statement then;
+
+        private final Statement otherwise;
+
+        If(Condition condition, Statement then, Statement otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        public String execute(String url, String host) {
+            if (condition.test(url, host)) {
+                return then.execute(url, host);
+            }
+            return otherwise == null ? NO_RESULT : otherwise.execute(url, host);
+        }
+    }
+
+    static class Block implements Statement {
+
+        private final Statement[] statements;
+
+        Block(List<Statement> statements) {
+            this.statements = statements.toArray(new Statement[statements.size()]);
+        }
+
+        @Override
+        public String execute(String url, String host) {
+            for (Statement statement : statements) {
+                String result = statement.execute(url, host);
+                if (result != NO_RESULT) {
+                    return result;
+                }
+            }
+            return NO_RESULT;
+        }
+    }
+
+    static class Return implements Statement {
+
+        private final String result;
+
+        Return(String result) {
+            this.result = result;
+        }
+
+        @Override
+        public String execute(String url, String host) {
+            return result;
+        }
+    }
+}
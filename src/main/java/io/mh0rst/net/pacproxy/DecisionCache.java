@@ -0,0 +1,189 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.littleshoot.proxy.ChainedProxy;
+
+/**
+ * A bounded cache for the parsed results of FindProxyForURL. Entries are keyed by host name by default, or by scheme,
+ * host and a prefix of the path for PAC files which inspect the URL. Lookups take no lock, the least recently used
+ * entries are evicted in batches when the cache overflows, see {@link BoundedCache}.
+ */
+public class DecisionCache {
+
+    /**
+     * Path segment count to use for keying entries by host name only.
+     */
+    public static final int HOST_ONLY = -1;
+
+    private final BoundedCache<String, Entry> entries;
+
+    private final long ttlNanos;
+
+    private final int pathSegments;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Creates a new decision cache.
+     * 
+     * @param maxEntries Maximum number of cached decisions, on overflow the least recently used tenth is evicted
+     * @param ttlSeconds Time after which a cached decision expires
+     * @param pathSegments Number of path segments to include in the cache key, or {@link #HOST_ONLY}
+     */
+    public DecisionCache(int maxEntries, long ttlSeconds, int pathSegments) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Decision cache must hold at least one entry");
+        }
+        this.entries = new BoundedCache<>(maxEntries);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.pathSegments = pathSegments;
+    }
+
+    /**
+     * Returns the cache key for the given request.
+     * 
+     * @param uri The request URI as passed to FindProxyForURL
+     * @param host The host as passed to FindProxyForURL
+     */
+    public String keyFor(String uri, String host) {
+        if (pathSegments == HOST_ONLY) {
+            return host;
+        }
+        int schemeEnd = uri.indexOf("://");
+        if (schemeEnd == -1) {
+            // authority form (CONNECT), there is no path to consider
+            return uri;
+        }
+        int end = uri.indexOf('/', schemeEnd + 3);
+        for (int segment = 0; end != -1 && segment < pathSegments; segment++) {
+            end = uri.indexOf('/', end + 1);
+        }
+        int query = indexOfAny(uri, schemeEnd + 3, '?', '#');
+        if (end == -1 || query != -1 && query < end) {
+            end = query;
+        }
+        return end == -1 ? uri : uri.substring(0, end);
+    }
+
+    /**
+     * Returns the cached proxy list for the given key or null if there is no valid entry.
+     * 
+     * @param key
+     */
+    public List<ChainedProxy> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.proxies;
+    }
+
+    /**
+     * Returns the current generation of the cache, which changes whenever the cache is invalidated.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the given proxy list, which must not be modified afterwards. The list is discarded if the cache was
+     * invalidated since the given generation, since it may have been computed by an outdated PAC file.
+     * 
+     * @param key
+     * @param proxies
+     * @param expectedGeneration Generation of the cache before the proxy list was computed
+     */
+    public void put(String key, List<ChainedProxy> proxies, long expectedGeneration) {
+        Entry entry = new Entry(proxies, System.nanoTime() + ttlNanos);
+        if (generation.get() != expectedGeneration) {
+            return;
+        }
+        entries.put(key, entry);
+        if (generation.get() != expectedGeneration) {
+            // invalidated concurrently, the clear may have run before the put
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Removes all cached decisions, e.g. because the PAC file changed.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached decisions.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups which were not answered from the cache.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static int indexOfAny(String str, int from, char first, char second) {
+        for (int i = from; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == first || c == second) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Entry {
+
+        private final List<ChainedProxy> proxies;
+
+        private final long expiresAt;
+
+        Entry(List<ChainedProxy> proxies, long expiresAt) {
+            this.proxies = proxies;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
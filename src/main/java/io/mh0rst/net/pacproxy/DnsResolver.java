@@ -0,0 +1,311 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caching host name resolver for the PAC functions. Lookups are executed on dedicated threads, concurrent lookups of
+ * the same name share a single query and each PAC evaluation only waits for DNS up to a configurable time budget.
+ */
+public class DnsResolver {
+
+    /**
+     * Performs the actual host name lookups.
+     */
+    public interface NameService {
+
+        /**
+         * Returns all addresses of the given host name.
+         * 
+         * @param host
+         * @throws UnknownHostException
+         */
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * Name service using the resolver of the JVM.
+     */
+    public static final NameService SYSTEM = InetAddress::getAllByName;
+
+    private static final Logger LOG = LoggerFactory.getLogger(DnsResolver.class);
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final ThreadLocal<long[]> EVALUATION_DEADLINE = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final NameService nameService;
+
+    private final long positiveTtlNanos;
+
+    private final long negativeTtlNanos;
+
+    private final long budgetNanos;
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<InetAddress[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+
+    private final AtomicLong queryNanos = new AtomicLong();
+
+    private final AtomicLong maxQueryNanos = new AtomicLong();
+
+    /**
+     * Creates a resolver using the JVM name service with default settings.
+     */
+    public DnsResolver() {
+        this(SYSTEM, 60, 10, 2000, 8);
+    }
+
+    /**
+     * Creates a new resolver.
+     * 
+     * @param nameService Service to perform the lookups
+     * @param positiveTtlSeconds Time to cache successful lookups
+     * @param negativeTtlSeconds Time to cache failed lookups
+     * @param budgetMillis Maximum time a single PAC evaluation may spend waiting for DNS
+     * @param threads Number of threads performing lookups
+     */
+    public DnsResolver(NameService nameService, long positiveTtlSeconds, long negativeTtlSeconds, long budgetMillis,
+                       int threads) {
+        this.nameService = nameService;
+        this.positiveTtlNanos = TimeUnit.SECONDS.toNanos(positiveTtlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<>(MAX_ENTRIES), new DaemonThreadFactory());
+    }
+
+    /**
+     * Starts the DNS time budget of a PAC evaluation on the current thread. Must be followed by
+     * {@link #endEvaluation()}.
+     */
+    public void beginEvaluation() {
+        EVALUATION_DEADLINE.get()[0] = System.nanoTime() + budgetNanos;
+    }
+
+    /**
+     * Ends the DNS time budget of the current thread.
+     */
+    public void endEvaluation() {
+        EVALUATION_DEADLINE.get()[0] = 0;
+    }
+
+    /**
+     * Returns the first address of the given host or null if it cannot be resolved in time.
+     * 
+     * @param host
+     */
+    public InetAddress resolve(String host) {
+        InetAddress[] addresses = resolveAll(host);
+        return addresses == null || addresses.length == 0 ? null : addresses[0];
+    }
+
+    /**
+     * Returns all addresses of the given host or null if it cannot be resolved in time.
+     * 
+     * @param host
+     */
+    public InetAddress[] resolveAll(String host) {
+        Entry entry = cache.get(host);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.incrementAndGet();
+            return entry.addresses;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<InetAddress[]> query = inFlight.get(host);
+        if (query == null) {
+            CompletableFuture<InetAddress[]> newQuery = new CompletableFuture<>();
+            query = inFlight.putIfAbsent(host, newQuery);
+            if (query == null) {
+                query = newQuery;
+                submit(host, newQuery);
+            }
+        }
+        long remaining = remainingBudget();
+        try {
+            return remaining > 0 ? query.get(remaining, TimeUnit.NANOSECONDS) : query.getNow(null);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            LOG.debug("DNS budget exceeded while resolving " + host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.debug("Could not resolve " + host, e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Removes all cached lookups.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of lookups which were abandoned because the time budget was exceeded.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of queries sent to the name service.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the total time spent in the name service in nanoseconds.
+     */
+    public long getQueryNanos() {
+        return queryNanos.get();
+    }
+
+    /**
+     * Returns the longest time a single name service query took in nanoseconds.
+     */
+    public long getMaxQueryNanos() {
+        return maxQueryNanos.get();
+    }
+
+    private long remainingBudget() {
+        long deadline = EVALUATION_DEADLINE.get()[0];
+        return deadline == 0 ? budgetNanos : deadline - System.nanoTime();
+    }
+
+    private void submit(String host, CompletableFuture<InetAddress[]> query) {
+        try {
+            executor.execute(() -> runQuery(host, query));
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(host, query);
+            query.completeExceptionally(e);
+        }
+    }
+
+    private void runQuery(String host, CompletableFuture<InetAddress[]> query) {
+        long start = System.nanoTime();
+        InetAddress[] addresses = null;
+        try {
+            addresses = nameService.lookup(host);
+        } catch (UnknownHostException e) {
+            LOG.debug("Could not resolve " + host, e);
+        } catch (RuntimeException e) {
+            LOG.warn("Name service failed to resolve " + host, e);
+        }
+        long end = System.nanoTime();
+        recordQuery(end - start);
+        boolean resolved = addresses != null && addresses.length > 0;
+        store(host, new Entry(resolved ? addresses : null, end + (resolved ? positiveTtlNanos : negativeTtlNanos)));
+        inFlight.remove(host, query);
+        query.complete(resolved ? addresses : null);
+    }
+
+    private void recordQuery(long nanos) {
+        queries.incrementAndGet();
+        queryNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = maxQueryNanos.get();
+        } while (nanos > max && !maxQueryNanos.compareAndSet(max, nanos));
+    }
+
+    private void store(String host, Entry entry) {
+        if (cache.size() >= MAX_ENTRIES) {
+            long now = System.nanoTime();
+            for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+                if (it.next().expiresAt - now <= 0) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(host, entry);
+    }
+
+    private static class Entry {
+
+        private final InetAddress[] addresses;
+
+        private final long expiresAt;
+
+        Entry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PacProxy-DNS-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The domain lists a PAC file registered with registerDomainList. Each evaluator owns its lists, so loading another
+ * PAC file, e.g. on a failed reload or for a replay comparison, never changes the lists of an evaluator in use. Script
+ * engines reach the lists of the evaluator running on the current thread, set with {@link #enter(DomainLists)}.
+ */
+final class DomainLists {
+
+    private static final ThreadLocal<DomainLists> CURRENT = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, DomainSuffixTrie> lists = new ConcurrentHashMap<>();
+
+    /**
+     * Makes the given lists the current ones of this thread and returns the previous ones, to be passed to
+     * {@link #exit(DomainLists)} afterwards.
+     * 
+     * @param domainLists
+     */
+    static DomainLists enter(DomainLists domainLists) {
+        DomainLists previous = CURRENT.get();
+        CURRENT.set(domainLists);
+        return previous;
+    }
+
+    /**
+     * Restores the lists which were current before {@link #enter(DomainLists)}.
+     * 
+     * @param previous
+     */
+    static void exit(DomainLists previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Returns the lists of the evaluator running on this thread or null.
+     */
+    static DomainLists current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Registers a list of domains, replacing any list registered with the same ID.
+     * 
+     * @param listId
+     * @param domains
+     */
+    void register(String listId, String[] domains) {
+        DomainSuffixTrie trie = new DomainSuffixTrie();
+        for (String domain : domains) {
+            if (domain != null) {
+                trie.add(domain);
+            }
+        }
+        lists.put(listId, trie);
+    }
+
+    /**
+     * Returns the list registered with the given ID or null.
+     * 
+     * @param listId
+     */
+    DomainSuffixTrie get(String listId) {
+        return lists.get(listId);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.Arrays;
+
+/**
+ * A set of domain suffixes stored as a trie over the reversed characters of each domain. A host matches if it ends
+ * with any of the domains, which is the semantics of the PAC function dnsDomainIs, so a single walk from the end of
+ * the host name answers the membership for all domains at once.
+ */
+public class DomainSuffixTrie {
+
+    private final Node root = new Node();
+
+    private int size;
+
+    /**
+     * Adds a domain suffix, e.g. ".example.com".
+     * 
+     * @param domain
+     */
+    public void add(String domain) {
+        Node node = root;
+        for (int i = domain.length() - 1; i >= 0; i--) {
+            node = node.childOrCreate(domain.charAt(i));
+        }
+        if (!node.terminal) {
+            node.terminal = true;
+            size++;
+        }
+    }
+
+    /**
+     * Returns true if the given host ends with any of the domains in this trie.
+     * 
+     * @param host
+     */
+    public boolean matches(String host) {
+        if (host == null) {
+            return false;
+        }
+        Node node = root;
+        if (node.terminal) {
+            return true;
+        }
+        for (int i = host.length() - 1; i >= 0; i--) {
+            node = node.child(host.charAt(i));
+            if (node == null) {
+                return false;
+            }
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of domains in this trie.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static class Node {
+
+        private static final char[] NO_KEYS = new char[0];
+
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] keys = NO_KEYS;
+
+        private Node[] children = NO_CHILDREN;
+
+        private boolean terminal;
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        Node childOrCreate(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            Node child = new Node();
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
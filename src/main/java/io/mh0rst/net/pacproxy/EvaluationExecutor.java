@@ -0,0 +1,133 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs PAC evaluations on dedicated threads, so the I/O thread waits at most until a deadline for the decision. An
+ * evaluation exceeding the deadline keeps running and may still fill the caches for later requests. Virtual threads
+ * are used if the JVM supports them.
+ */
+public class EvaluationExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EvaluationExecutor.class);
+
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    private final long deadlineNanos;
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Creates a new executor.
+     * 
+     * @param maxConcurrent Maximum number of evaluations running at the same time, further requests are rejected
+     * @param deadlineMillis Time to wait for an evaluation
+     */
+    public EvaluationExecutor(int maxConcurrent, long deadlineMillis) {
+        this.executor = newExecutor();
+        this.permits = new Semaphore(maxConcurrent);
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                                                                       .invoke(null);
+            LOG.info("Evaluating PAC file on virtual threads");
+            return virtual;
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Virtual threads not available", e);
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "PacProxy-Evaluation-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the given evaluation and waits for its result until the deadline.
+     * 
+     * @param evaluation
+     * @return The result or null if the deadline was exceeded or too many evaluations are running
+     * @throws ExecutionException If the evaluation failed
+     */
+    public <T> T evaluate(Callable<T> evaluation) throws ExecutionException {
+        if (!permits.tryAcquire()) {
+            rejections.incrementAndGet();
+            return null;
+        }
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    return evaluation.call();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejections.incrementAndGet();
+            return null;
+        }
+        try {
+            return future.get(deadlineNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of evaluations which exceeded the deadline.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of evaluations rejected because too many were running.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+/**
+ * Parses textual IPv4 and IPv6 addresses without involving any name service.
+ */
+public final class IpAddresses {
+
+    private IpAddresses() {
+    }
+
+    /**
+     * Returns the 4 (IPv4) or 16 (IPv6) address bytes of the given literal, or null if it is not an IP address.
+     * IPv6 addresses may be enclosed in brackets and carry a zone ID, which is ignored.
+     * 
+     * @param literal
+     */
+    public static byte[] parse(String literal) {
+        if (literal == null || literal.isEmpty()) {
+            return null;
+        }
+        return parse(literal, 0, literal.length());
+    }
+
+    /**
+     * Returns the address bytes of the given part of a string, or null if it is not an IP address.
+     * 
+     * @param str
+     * @param start Index of the first character
+     * @param end Index after the last character
+     */
+    public static byte[] parse(String str, int start, int end) {
+        if (end - start >= 2 && str.charAt(start) == '[' && str.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (str.charAt(i) == ':') {
+                return parseIPv6(str, start, end);
+            }
+        }
+        byte[] address = new byte[4];
+        return parseIPv4(str, start, end, address, 0) ? address : null;
+    }
+
+    private static boolean parseIPv4(String str, int start, int end, byte[] address, int offset) {
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + c - '0';
+                if (++digits > 3 || value > 255) {
+                    return false;
+                }
+            } else if (c == '.' && digits > 0 && part < 3) {
+                address[offset + part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0 || part != 3) {
+            return false;
+        }
+        address[offset + part] = (byte) value;
+        return true;
+    }
+
+    private static byte[] parseIPv6(String str, int start, int end) {
+        int zone = str.indexOf('%', start);
+        if (zone != -1 && zone < end) {
+            end = zone;
+        }
+        byte[] address = new byte[16];
+        int written = 0;
+        int compressAt = -1;
+        int i = start;
+        if (end - start >= 2 && str.charAt(i) == ':' && str.charAt(i + 1) == ':') {
+            compressAt = 0;
+            i += 2;
+        } else if (i < end && str.charAt(i) == ':') {
+            return null;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            while (i < end && Character.digit(str.charAt(i), 16) != -1 && i - groupStart < 4) {
+                value = (value << 4) | Character.digit(str.charAt(i), 16);
+                i++;
+            }
+            if (i < end && str.charAt(i) == '.') {
+                // embedded IPv4 address in the last 32 bits
+                if (written > 12 || !parseIPv4(str, groupStart, end, address, written)) {
+                    return null;
+                }
+                written += 4;
+                break;
+            }
+            if (i == groupStart || written > 14) {
+                return null;
+            }
+            address[written++] = (byte) (value >> 8);
+            address[written++] = (byte) value;
+            if (i == end) {
+                break;
+            }
+            if (str.charAt(i) != ':') {
+                return null;
+            }
+            i++;
+            if (i < end && str.charAt(i) == ':') {
+                if (compressAt != -1) {
+                    return null;
+                }
+                compressAt = written;
+                i++;
+            } else if (i == end) {
+                return null;
+            }
+        }
+        if (compressAt == -1) {
+            return written == 16 ? address : null;
+        }
+        if (written == 16) {
+            return null;
+        }
+        int tail = written - compressAt;
+        System.arraycopy(address, compressAt, address, 16 - tail, tail);
+        for (int j = compressAt; j < 16 - tail; j++) {
+            address[j] = 0;
+        }
+        return address;
+    }
+}
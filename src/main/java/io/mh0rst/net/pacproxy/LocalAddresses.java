@@ -0,0 +1,164 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the IP addresses of the machine running this proxy for myIpAddress and myIpAddressEx. Enumerating the network
+ * interfaces is expensive, so the addresses are detected once and refreshed in the background.
+ */
+final class LocalAddresses {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalAddresses.class);
+
+    private static volatile Snapshot snapshot;
+
+    private LocalAddresses() {
+    }
+
+    /**
+     * Returns the IPv4 address of this machine, an empty string if there is none.
+     */
+    static String getIpAddress() {
+        return current().ipAddress;
+    }
+
+    /**
+     * Returns all IP addresses of this machine separated by semicolons.
+     */
+    static String getIpAddresses() {
+        return current().ipAddresses;
+    }
+
+    /**
+     * Detects the addresses again every given number of seconds.
+     * 
+     * @param intervalSeconds
+     */
+    static void startRefresh(int intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PacProxy-Local-Address");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(LocalAddresses::refresh, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Detects the addresses of this machine and replaces the current ones if they changed.
+     */
+    static synchronized void refresh() {
+        Snapshot previous = snapshot;
+        Snapshot detected = new Snapshot(detectIpAddress(), detectIpAddresses());
+        if (previous == null) {
+            LOG.debug("Own IP addresses: " + detected.ipAddresses);
+            snapshot = detected;
+        } else if (!previous.ipAddress.equals(detected.ipAddress) ||
+                   !previous.ipAddresses.equals(detected.ipAddresses)) {
+            LOG.info("Own IP addresses changed to " + detected.ipAddresses);
+            snapshot = detected;
+        }
+    }
+
+    private static Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            refresh();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    private static String detectIpAddress() {
+        String address = null;
+        try {
+            address = InetAddress.getLocalHost().getHostAddress();
+            if (!address.startsWith("127")) {
+                return address;
+            }
+        } catch (UnknownHostException e) {
+            LOG.debug("Could not resolve local hostname", e);
+        }
+        try {
+            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (iface.isLoopback()) {
+                    continue;
+                }
+                Enumeration<InetAddress> inetAddresses = iface.getInetAddresses();
+                while (inetAddresses.hasMoreElements()) {
+                    InetAddress ifaceAddress = inetAddresses.nextElement();
+                    if (!ifaceAddress.isLinkLocalAddress() && !(ifaceAddress instanceof Inet6Address)) {
+                        return ifaceAddress.getHostAddress();
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            LOG.warn("Could not resolve own IP address", e);
+        }
+        return address == null ? "" : address;
+    }
+
+    private static String detectIpAddresses() {
+        StringBuilder addresses = new StringBuilder();
+        try {
+            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (iface.isLoopback()) {
+                    continue;
+                }
+                Enumeration<InetAddress> inetAddresses = iface.getInetAddresses();
+                while (inetAddresses.hasMoreElements()) {
+                    InetAddress ifaceAddress = inetAddresses.nextElement();
+                    if (!ifaceAddress.isLinkLocalAddress()) {
+                        if (addresses.length() > 0) {
+                            addresses.append(';');
+                        }
+                        addresses.append(ifaceAddress.getHostAddress());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            LOG.warn("Could not resolve own IP address", e);
+        }
+        return addresses.toString();
+    }
+
+    private static class Snapshot {
+
+        private final String ipAddress;
+
+        private final String ipAddresses;
+
+        public Snapshot(String ipAddress, String ipAddresses) {
+            this.ipAddress = ipAddress;
+            this.ipAddresses = ipAddresses;
+        }
+    }
+}
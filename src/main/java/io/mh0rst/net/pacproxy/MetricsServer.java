@@ -0,0 +1,216 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the statistics of PacProxy in the Prometheus text format on /metrics.
+ */
+@SuppressWarnings("restriction")
+public class MetricsServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final PacProxyManager manager;
+
+    private HttpServer server;
+
+    /**
+     * Creates a new metrics server for the given proxy manager.
+     * 
+     * @param manager
+     */
+    public MetricsServer(PacProxyManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Enables recording of the PAC metrics and starts serving them on the given address.
+     * 
+     * @param address
+     * @throws IOException
+     */
+    public void start(InetSocketAddress address) throws IOException {
+        PacMetrics.enable();
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        LOG.info("Serving metrics on http://" + address.getHostString() + ":" + address.getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     */
+    String render() {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "pacproxy_evaluation_seconds", "histogram", "Time spent evaluating FindProxyForURL");
+        long[] counts = PacMetrics.getLatencyCounts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i < PacMetrics.LATENCY_BUCKETS.length ? Double.toString(PacMetrics.LATENCY_BUCKETS[i])
+                                                                 : "+Inf";
+            out.append("pacproxy_evaluation_seconds_bucket{le=\"").append(bound).append("\"} ").append(cumulative)
+               .append('\n');
+        }
+        sample(out, "pacproxy_evaluation_seconds_sum", PacMetrics.getLatencyNanos() / NANOS_PER_SECOND);
+        sample(out, "pacproxy_evaluation_seconds_count", cumulative);
+
+        header(out, "pacproxy_function_calls_total", "counter", "Calls of PAC functions");
+        for (PacMetrics.Function function : PacMetrics.Function.values()) {
+            labeled(out, "pacproxy_function_calls_total", "function", function.getScriptName(),
+                    PacMetrics.getFunctionCalls(function));
+        }
+        header(out, "pacproxy_function_seconds_total", "counter", "Time spent in PAC functions");
+        for (PacMetrics.Function function : PacMetrics.Function.values()) {
+            labeled(out, "pacproxy_function_seconds_total", "function", function.getScriptName(),
+                    PacMetrics.getFunctionNanos(function) / NANOS_PER_SECOND);
+        }
+
+        header(out, "pacproxy_decisions_total", "counter", "Requests by primary PAC result");
+        counters(out, "pacproxy_decisions_total", "result", PacMetrics.getDecisions());
+        header(out, "pacproxy_errors_total", "counter", "Errors while evaluating the PAC file");
+        counters(out, "pacproxy_errors_total", "type", PacMetrics.getErrors());
+
+        DnsResolver resolver = PacFunctions.getResolver();
+        header(out, "pacproxy_dns_cache_hits_total", "counter", "DNS lookups answered from the cache");
+        sample(out, "pacproxy_dns_cache_hits_total", resolver.getHits());
+        header(out, "pacproxy_dns_cache_misses_total", "counter", "DNS lookups not answered from the cache");
+        sample(out, "pacproxy_dns_cache_misses_total", resolver.getMisses());
+        header(out, "pacproxy_dns_timeouts_total", "counter", "DNS lookups exceeding the evaluation budget");
+        sample(out, "pacproxy_dns_timeouts_total", resolver.getTimeouts());
+        header(out, "pacproxy_dns_queries_total", "counter", "Queries sent to the name service");
+        sample(out, "pacproxy_dns_queries_total", resolver.getQueries());
+        header(out, "pacproxy_dns_query_seconds_total", "counter", "Time spent in the name service");
+        sample(out, "pacproxy_dns_query_seconds_total", resolver.getQueryNanos() / NANOS_PER_SECOND);
+        header(out, "pacproxy_dns_query_seconds_max", "gauge", "Longest name service query");
+        sample(out, "pacproxy_dns_query_seconds_max", resolver.getMaxQueryNanos() / NANOS_PER_SECOND);
+
+        DecisionCache cache = manager.getDecisionCache();
+        if (cache != null) {
+            header(out, "pacproxy_decision_cache_hits_total", "counter", "Requests answered from the decision cache");
+            sample(out, "pacproxy_decision_cache_hits_total", cache.getHits());
+            header(out, "pacproxy_decision_cache_misses_total", "counter", "Requests evaluating the PAC file");
+            sample(out, "pacproxy_decision_cache_misses_total", cache.getMisses());
+            header(out, "pacproxy_decision_cache_entries", "gauge", "Cached decisions");
+            sample(out, "pacproxy_decision_cache_entries", cache.size());
+        }
+
+        EvaluationExecutor executor = manager.getEvaluationExecutor();
+        if (executor != null) {
+            header(out, "pacproxy_evaluation_timeouts_total", "counter", "Evaluations exceeding the deadline");
+            sample(out, "pacproxy_evaluation_timeouts_total", executor.getTimeouts());
+            header(out, "pacproxy_evaluation_rejections_total", "counter", "Evaluations rejected as the limit was reached");
+            sample(out, "pacproxy_evaluation_rejections_total", executor.getRejections());
+        }
+
+        AccessLog accessLog = manager.getAccessLog();
+        if (accessLog != null) {
+            header(out, "pacproxy_access_log_dropped_total", "counter", "Access log entries dropped as the buffer was full");
+            sample(out, "pacproxy_access_log_dropped_total", accessLog.getDropped());
+        }
+
+        UpstreamHealth health = manager.getUpstreamHealth();
+        if (health != null) {
+            header(out, "pacproxy_upstream_up", "gauge", "Whether an upstream proxy which had failures is up");
+            for (Map.Entry<String, Boolean> state : health.getStates().entrySet()) {
+                labeled(out, "pacproxy_upstream_up", "upstream", state.getKey(), state.getValue() ? 1 : 0);
+            }
+        }
+
+        UpstreamBalancer balancer = manager.getUpstreamBalancer();
+        if (balancer != null) {
+            header(out, "pacproxy_upstream_connections", "gauge", "Open connections per upstream proxy");
+            for (Map.Entry<String, AtomicInteger> connections : balancer.getConnections().entrySet()) {
+                labeled(out, "pacproxy_upstream_connections", "upstream", connections.getKey(),
+                        connections.getValue().get());
+            }
+        }
+
+        header(out, "pacproxy_reloads_total", "counter", "Successful reloads of the PAC file");
+        sample(out, "pacproxy_reloads_total", manager.getReloads());
+        header(out, "pacproxy_reload_failures_total", "counter", "Failed reloads of the PAC file");
+        sample(out, "pacproxy_reload_failures_total", manager.getReloadFailures());
+        header(out, "pacproxy_last_reload_seconds", "gauge", "Duration of the last reload attempt");
+        sample(out, "pacproxy_last_reload_seconds", manager.getLastReloadMillis() / 1000.0);
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void labeled(StringBuilder out, String name, String label, String labelValue, Object value) {
+        out.append(name).append('{').append(label).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append("\"} ").append(value).append('\n');
+    }
+
+    private static void counters(StringBuilder out, String name, String label, Map<String, LongAdder> counters) {
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            labeled(out, name, label, counter.getKey(), counter.getValue().sum());
+        }
+    }
+}
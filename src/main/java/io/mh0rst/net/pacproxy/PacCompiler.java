@@ -0,0 +1,681 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mh0rst.net.pacproxy.CompiledPac.Condition;
+import io.mh0rst.net.pacproxy.CompiledPac.IntValue;
+import io.mh0rst.net.pacproxy.CompiledPac.Statement;
+import io.mh0rst.net.pacproxy.CompiledPac.Value;
+
+/**
+ * Compiles PAC files consisting of a single FindProxyForURL function built from if/else statements, string returns
+ * and the common PAC functions (plus top level registerDomainList calls) into a {@link CompiledPac}. Clauses of the same kind combined with || are merged into
+ * a domain suffix trie, a glob list or a subnet table. Anything else is rejected with an
+ * {@link UnsupportedPacException}, so the PAC file has to be evaluated by a script engine instead.
+ */
+public final class PacCompiler {
+
+    private final List<Token> tokens;
+
+    private int position;
+
+    private String urlName;
+
+    private String hostName;
+
+    private int domains;
+
+    private int globs;
+
+    private int subnets;
+
+    private int clauses;
+
+    private final DomainLists domainLists = new DomainLists();
+
+    private PacCompiler(String source) throws UnsupportedPacException {
+        tokens = new Tokenizer(source).tokenize();
+    }
+
+    /**
+     * Compiles the given PAC source.
+     * 
+     * @param source
+     * @throws UnsupportedPacException if the PAC file uses anything the compiler does not know
+     */
+    public static CompiledPac compile(String source) throws UnsupportedPacException {
+        return new PacCompiler(source).compileFunction();
+    }
+
+    private CompiledPac compileFunction() throws UnsupportedPacException {
+        registerDomainLists();
+        expect("function");
+        expect("FindProxyForURL");
+        expect("(");
+        urlName = identifier();
+        expect(",");
+        hostName = identifier();
+        expect(")");
+        Statement body = block();
+        registerDomainLists();
+        if (peek().type != TokenType.END) {
+            throw unsupported("code after FindProxyForURL");
+        }
+        return new CompiledPac(body, clauses + " clauses, " + domains + " domains, " + globs + " globs, " + subnets +
+                                     " subnets");
+    }
+
+    /**
+     * Executes top level registerDomainList("id", ["domain", ...]) calls, which happen at load time only. The lists
+     * belong to the compiled rules only.
+     */
+    private void registerDomainLists() throws UnsupportedPacException {
+        while (accept("registerDomainList")) {
+            expect("(");
+            String listId = string();
+            expect(",");
+            expect("[");
+            List<String> domains = new ArrayList<>();
+            if (!accept("]")) {
+                do {
+                    domains.add(string());
+                } while (accept(","));
+                expect("]");
+            }
+            expect(")");
+            accept(";");
+            domainLists.register(listId, domains.toArray(new String[domains.size()]));
+            this.domains += domains.size();
+        }
+    }
+
+    private Statement block() throws UnsupportedPacException {
+        expect("{");
+        List<Statement> statements = new ArrayList<>();
+        while (!accept("}")) {
+            Statement statement = statement();
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+        return statements.size() == 1 ? statements.get(0) : new CompiledPac.Block(statements);
+    }
+
+    private Statement statement() throws UnsupportedPacException {
+        Token token = peek();
+        if (token.is("{")) {
+            return block();
+        }
+        if (accept(";")) {
+            return null;
+        }
+        if (accept("if")) {
+            expect("(");
+            Condition condition = or();
+            expect(")");
+            Statement then = statementOrEmpty();
+            Statement otherwise = accept("else") ? statementOrEmpty() : null;
+            return new CompiledPac.If(condition, then, otherwise);
+        }
+        if (accept("return")) {
+            Token result = next();
+            if (result.type != TokenType.STRING) {
+                throw unsupported("return of " + result);
+            }
+            accept(";");
+            return new CompiledPac.Return(result.text);
+        }
+        throw unsupported("statement " + token);
+    }
+
+    private Statement statementOrEmpty() throws UnsupportedPacException {
+        Statement statement = statement();
+        return statement == null ? new CompiledPac.Block(new ArrayList<>()) : statement;
+    }
+
+    private Condition or() throws UnsupportedPacException {
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(and());
+        while (accept("||")) {
+            conditions.add(and());
+        }
+        return conditions.size() == 1 ? conditions.get(0) : merge(conditions);
+    }
+
+    private Condition and() throws UnsupportedPacException {
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(not());
+        while (accept("&&")) {
+            conditions.add(not());
+        }
+        return conditions.size() == 1 ? conditions.get(0) : new CompiledPac.And(conditions);
+    }
+
+    private Condition not() throws UnsupportedPacException {
+        if (accept("!")) {
+            Condition condition = unary();
+            if (peek().isComparison()) {
+                // JavaScript compares the negated operand, e.g. (!a) == b
+                throw unsupported("comparison of a negation at " + peek());
+            }
+            return (url, host) -> !condition.test(url, host);
+        }
+        if (accept("(")) {
+            Condition condition = or();
+            expect(")");
+            return condition;
+        }
+        Object left = operand();
+        Token operator = peek();
+        if (!operator.isComparison()) {
+            if (left instanceof Condition) {
+                return (Condition) left;
+            }
+            throw unsupported("non-boolean condition at " + operator);
+        }
+        next();
+        Object right = operand();
+        clauses++;
+        if (left instanceof Value && right instanceof Value) {
+            Condition equals = new CompiledPac.Equals((Value) left, (Value) right);
+            switch (operator.text) {
+            case "==":
+            case "===":
+                return equals;
+            case "!=":
+            case "!==":
+                return (url, host) -> !equals.test(url, host);
+            default:
+                throw unsupported("string comparison " + operator);
+            }
+        }
+        if (left instanceof IntValue && right instanceof IntValue) {
+            return compare((IntValue) left, operator.text, (IntValue) right);
+        }
+        throw unsupported("comparison of different types at " + operator);
+    }
+
+    /**
+     * Parses the operand of !, which binds tighter than comparisons.
+     */
+    private Condition unary() throws UnsupportedPacException {
+        if (accept("!")) {
+            Condition condition = unary();
+            return (url, host) -> !condition.test(url, host);
+        }
+        if (accept("(")) {
+            Condition condition = or();
+            expect(")");
+            return condition;
+        }
+        Object operand = operand();
+        if (!(operand instanceof Condition)) {
+            throw unsupported("non-boolean condition at " + peek());
+        }
+        return (Condition) operand;
+    }
+
+    private Condition compare(IntValue left, String operator, IntValue right) throws UnsupportedPacException {
+        switch (operator) {
+        case "==":
+        case "===":
+            return (url, host) -> left.get(url, host) == right.get(url, host);
+        case "!=":
+        case "!==":
+            return (url, host) -> left.get(url, host) != right.get(url, host);
+        case "<":
+            return (url, host) -> left.get(url, host) < right.get(url, host);
+        case "<=":
+            return (url, host) -> left.get(url, host) <= right.get(url, host);
+        case ">":
+            return (url, host) -> left.get(url, host) > right.get(url, host);
+        case ">=":
+            return (url, host) -> left.get(url, host) >= right.get(url, host);
+        default:
+            throw unsupported("operator " + operator);
+        }
+    }
+
+    /**
+     * Parses a value, a number or a boolean function call.
+     */
+    private Object operand() throws UnsupportedPacException {
+        Token token = next();
+        switch (token.type) {
+        case STRING:
+            return new CompiledPac.Literal(token.text);
+        case NUMBER:
+            int number = Integer.parseInt(token.text);
+            return (IntValue) (url, host) -> number;
+        case IDENTIFIER:
+            if (token.text.equals(urlName) || token.text.equals(hostName)) {
+                return members(new CompiledPac.Parameter(token.text.equals(urlName), token.text));
+            }
+            return call(token.text);
+        default:
+            throw unsupported(token.toString());
+        }
+    }
+
+    private Value members(Value value) throws UnsupportedPacException {
+        while (accept(".")) {
+            String member = identifier();
+            expect("(");
+            if ("toLowerCase".equals(member)) {
+                value = new CompiledPac.LowerCase(value);
+            } else if ("substring".equals(member)) {
+                int start = integer();
+                int end = accept(",") ? integer() : -1;
+                value = new CompiledPac.Substring(value, start, end);
+            } else {
+                throw unsupported("method " + member);
+            }
+            expect(")");
+        }
+        return value;
+    }
+
+    private Object call(String function) throws UnsupportedPacException {
+        expect("(");
+        List<Value> arguments = new ArrayList<>();
+        if (!accept(")")) {
+            do {
+                Object argument = operand();
+                if (!(argument instanceof Value)) {
+                    throw unsupported("argument of " + function);
+                }
+                arguments.add((Value) argument);
+            } while (accept(","));
+            expect(")");
+        }
+        Object result = function(function, arguments);
+        if (result instanceof Condition) {
+            clauses++;
+        }
+        return result;
+    }
+
+    private Object function(String function, List<Value> args) throws UnsupportedPacException {
+        switch (function) {
+        case "dnsResolve":
+            checkArguments(function, args, 1);
+            return members(new CompiledPac.Call(function, args.get(0)));
+        case "myIpAddress":
+            checkArguments(function, args, 0);
+            return members(new CompiledPac.Call(function, null));
+        case "dnsDomainLevels":
+            checkArguments(function, args, 1);
+            return (IntValue) (url, host) -> PacFunctions.dnsDomainLevels(args.get(0).get(url, host));
+        case "isPlainHostName":
+            checkArguments(function, args, 1);
+            return (Condition) (url, host) -> PacFunctions.isPlainHostName(args.get(0).get(url, host));
+        case "isResolvable":
+        case "isResolvableEx":
+            checkArguments(function, args, 1);
+            return (Condition) (url, host) -> PacFunctions.isResolvable(args.get(0).get(url, host));
+        case "localHostOrDomainIs":
+            checkArguments(function, args, 2);
+            return (Condition) (url, host) -> PacFunctions.localHostOrDomainIs(args.get(0).get(url, host),
+                                                                               args.get(1).get(url, host));
+        case "dnsDomainIs":
+            checkArguments(function, args, 2);
+            if (args.get(1) instanceof CompiledPac.Literal) {
+                domains++;
+                return new CompiledPac.DomainIs(args.get(0), ((CompiledPac.Literal) args.get(1)).value());
+            }
+            return (Condition) (url, host) -> PacFunctions.dnsDomainIs(args.get(0).get(url, host),
+                                                                       args.get(1).get(url, host));
+        case "dnsDomainIsAny":
+            checkArguments(function, args, 2);
+            if (args.get(1) instanceof CompiledPac.Literal) {
+                DomainSuffixTrie trie = domainLists.get(((CompiledPac.Literal) args.get(1)).value());
+                if (trie != null) {
+                    return new CompiledPac.DomainSet(PacMetrics.Function.DNS_DOMAIN_IS_ANY, args.get(0), trie);
+                }
+            }
+            return (Condition) (url, host) -> PacFunctions.dnsDomainIsAny(domainLists,
+                                                                          args.get(0).get(url, host),
+                                                                          args.get(1).get(url, host));
+        case "shExpMatch":
+            checkArguments(function, args, 2);
+            if (args.get(1) instanceof CompiledPac.Literal) {
+                globs++;
+                return new CompiledPac.ShExpMatch(args.get(0),
+                                                  ShellExpression.compile(((CompiledPac.Literal) args.get(1)).value()));
+            }
+            return (Condition) (url, host) -> PacFunctions.shExpMatch(args.get(0).get(url, host),
+                                                                      args.get(1).get(url, host));
+        case "isInNet":
+            checkArguments(function, args, 3);
+            if (args.get(1) instanceof CompiledPac.Literal && args.get(2) instanceof CompiledPac.Literal) {
+                SubnetPattern subnet = SubnetPattern.forMask(((CompiledPac.Literal) args.get(1)).value(),
+                                                             ((CompiledPac.Literal) args.get(2)).value());
+                if (subnet != null) {
+                    subnets++;
+                    return new CompiledPac.InNet(PacMetrics.Function.IS_IN_NET, args.get(0), subnet);
+                }
+            }
+            return (Condition) (url, host) -> PacFunctions.isInNet(args.get(0).get(url, host),
+                                                                   args.get(1).get(url, host),
+                                                                   args.get(2).get(url, host));
+        case "isInNetEx":
+            checkArguments(function, args, 2);
+            if (args.get(1) instanceof CompiledPac.Literal) {
+                SubnetPattern subnet = SubnetPattern.forPrefix(((CompiledPac.Literal) args.get(1)).value());
+                if (subnet != null) {
+                    subnets++;
+                    return new CompiledPac.InNet(PacMetrics.Function.IS_IN_NET_EX, args.get(0), subnet);
+                }
+            }
+            return (Condition) (url, host) -> PacFunctions.isInNetEx(args.get(0).get(url, host),
+                                                                     args.get(1).get(url, host));
+        default:
+            throw unsupported("function " + function);
+        }
+    }
+
+    /**
+     * Merges dnsDomainIs, shExpMatch and isInNet clauses on the same value into a single lookup structure. This does
+     * not change the result since all supported clauses are free of side effects, each merged structure is evaluated
+     * at the position of its first clause.
+     */
+    private Condition merge(List<Condition> conditions) {
+        Map<String, List<Condition>> groups = new LinkedHashMap<>();
+        for (Condition condition : conditions) {
+            groups.computeIfAbsent(groupKey(condition), key -> new ArrayList<>()).add(condition);
+        }
+        List<Condition> merged = new ArrayList<>();
+        for (Map.Entry<String, List<Condition>> group : groups.entrySet()) {
+            List<Condition> members = group.getValue();
+            if (group.getKey().startsWith("#")) {
+                merged.addAll(members);
+            } else if (members.get(0) instanceof CompiledPac.DomainIs) {
+                DomainSuffixTrie trie = new DomainSuffixTrie();
+                for (Condition member : members) {
+                    trie.add(((CompiledPac.DomainIs) member).domain);
+                }
+                merged.add(new CompiledPac.DomainSet(PacMetrics.Function.DNS_DOMAIN_IS,
+                                                     ((CompiledPac.DomainIs) members.get(0)).host, trie));
+            } else if (members.get(0) instanceof CompiledPac.ShExpMatch) {
+                List<ShellExpression> expressions = new ArrayList<>();
+                for (Condition member : members) {
+                    expressions.add(((CompiledPac.ShExpMatch) member).expression);
+                }
+                merged.add(new CompiledPac.GlobList(((CompiledPac.ShExpMatch) members.get(0)).str, expressions));
+            } else {
+                List<SubnetPattern> table = new ArrayList<>();
+                for (Condition member : members) {
+                    table.add(((CompiledPac.InNet) member).subnet);
+                }
+                CompiledPac.InNet first = (CompiledPac.InNet) members.get(0);
+                merged.add(new CompiledPac.SubnetTable(first.function, first.host, table));
+            }
+        }
+        return merged.size() == 1 ? merged.get(0) : new CompiledPac.Or(merged);
+    }
+
+    private String groupKey(Condition condition) {
+        if (condition instanceof CompiledPac.DomainIs) {
+            return "dnsDomainIs " + ((CompiledPac.DomainIs) condition).host;
+        }
+        if (condition instanceof CompiledPac.ShExpMatch) {
+            return "shExpMatch " + ((CompiledPac.ShExpMatch) condition).str;
+        }
+        if (condition instanceof CompiledPac.InNet) {
+            return "isInNet " + ((CompiledPac.InNet) condition).host;
+        }
+        // keeps the condition on its own
+        return "#" + System.identityHashCode(condition);
+    }
+
+    private void checkArguments(String function, List<Value> arguments, int count) throws UnsupportedPacException {
+        if (arguments.size() != count) {
+            throw unsupported(function + " with " + arguments.size() + " arguments");
+        }
+    }
+
+    private String identifier() throws UnsupportedPacException {
+        Token token = next();
+        if (token.type != TokenType.IDENTIFIER) {
+            throw unsupported(token + " instead of an identifier");
+        }
+        return token.text;
+    }
+
+    private String string() throws UnsupportedPacException {
+        Token token = next();
+        if (token.type != TokenType.STRING) {
+            throw unsupported(token + " instead of a string");
+        }
+        return token.text;
+    }
+
+    private int integer() throws UnsupportedPacException {
+        Token token = next();
+        if (token.type != TokenType.NUMBER) {
+            throw unsupported(token + " instead of a number");
+        }
+        return Integer.parseInt(token.text);
+    }
+
+    private Token peek() {
+        return tokens.get(position);
+    }
+
+    private Token next() {
+        Token token = tokens.get(position);
+        if (token.type != TokenType.END) {
+            position++;
+        }
+        return token;
+    }
+
+    private boolean accept(String text) {
+        if (peek().is(text)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String text) throws UnsupportedPacException {
+        if (!accept(text)) {
+            throw unsupported(peek() + " instead of '" + text + "'");
+        }
+    }
+
+    private UnsupportedPacException unsupported(String what) {
+        return new UnsupportedPacException("Unsupported " + what + " in line " + peek().line);
+    }
+
+    /**
+     * Thrown if a PAC file cannot be compiled.
+     */
+    public static class UnsupportedPacException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedPacException(String message) {
+            super(message);
+        }
+    }
+
+    private enum TokenType {
+        IDENTIFIER, STRING, NUMBER, PUNCTUATION, END
+    }
+
+    private static class Token {
+
+        private final TokenType type;
+
+        private final String text;
+
+        private final int line;
+
+        Token(TokenType type, String text, int line) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+        }
+
+        boolean is(String value) {
+            return (type == TokenType.IDENTIFIER || type == TokenType.PUNCTUATION) && text.equals(value);
+        }
+
+        boolean isComparison() {
+            return type == TokenType.PUNCTUATION && (text.equals("==") || text.equals("===") || text.equals("!=") ||
+                                                     text.equals("!==") || text.startsWith("<") ||
+                                                     text.startsWith(">"));
+        }
+
+        @Override
+        public String toString() {
+            return type == TokenType.END ? "end of file" : "'" + text + "'";
+        }
+    }
+
+    private static class Tokenizer {
+
+        private static final String[] OPERATORS = { "===", "!==", "==", "!=", "<=", ">=", "||", "&&" };
+
+        private final String source;
+
+        private int index;
+
+        private int line = 1;
+
+        Tokenizer(String source) {
+            this.source = source;
+        }
+
+        List<Token> tokenize() throws UnsupportedPacException {
+            List<Token> tokens = new ArrayList<>();
+            while (true) {
+                skipWhitespaceAndComments();
+                if (index >= source.length()) {
+                    tokens.add(new Token(TokenType.END, "", line));
+                    return tokens;
+                }
+                tokens.add(token());
+            }
+        }
+
+        private Token token() throws UnsupportedPacException {
+            char c = source.charAt(index);
+            int start = index;
+            if (Character.isJavaIdentifierStart(c)) {
+                while (index < source.length() && Character.isJavaIdentifierPart(source.charAt(index))) {
+                    index++;
+                }
+                return new Token(TokenType.IDENTIFIER, source.substring(start, index), line);
+            }
+            if (c >= '0' && c <= '9') {
+                while (index < source.length() && Character.isDigit(source.charAt(index))) {
+                    index++;
+                }
+                // fractions, exponents, hex, octal and numbers beyond int are left to the script engine
+                if (index < source.length() && (source.charAt(index) == '.' ||
+                                                Character.isJavaIdentifierPart(source.charAt(index))) ||
+                    c == '0' && index - start > 1) {
+                    throw new UnsupportedPacException("Unsupported number format in line " + line);
+                }
+                String number = source.substring(start, index);
+                try {
+                    Integer.parseInt(number);
+                } catch (NumberFormatException e) {
+                    throw new UnsupportedPacException("Unsupported number " + number + " in line " + line);
+                }
+                return new Token(TokenType.NUMBER, number, line);
+            }
+            if (c == '"' || c == '\'') {
+                return string(c);
+            }
+            for (String operator : OPERATORS) {
+                if (source.startsWith(operator, index)) {
+                    index += operator.length();
+                    return new Token(TokenType.PUNCTUATION, operator, line);
+                }
+            }
+            if ("(){}[],;.!<>=".indexOf(c) != -1) {
+                index++;
+                return new Token(TokenType.PUNCTUATION, String.valueOf(c), line);
+            }
+            throw new UnsupportedPacException("Unsupported character '" + c + "' in line " + line);
+        }
+
+        private Token string(char quote) throws UnsupportedPacException {
+            StringBuilder value = new StringBuilder();
+            index++;
+            while (index < source.length()) {
+                char c = source.charAt(index++);
+                if (c == quote) {
+                    return new Token(TokenType.STRING, value.toString(), line);
+                }
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\\') {
+                    if (index >= source.length()) {
+                        break;
+                    }
+                    char escaped = source.charAt(index++);
+                    if ("\\'\"".indexOf(escaped) == -1) {
+                        throw new UnsupportedPacException("Unsupported escape sequence in line " + line);
+                    }
+                    c = escaped;
+                }
+                value.append(c);
+            }
+            throw new UnsupportedPacException("Unterminated string in line " + line);
+        }
+
+        private void skipWhitespaceAndComments() throws UnsupportedPacException {
+            while (index < source.length()) {
+                char c = source.charAt(index);
+                if (c == '\n') {
+                    line++;
+                    index++;
+                } else if (Character.isWhitespace(c)) {
+                    index++;
+                } else if (source.startsWith("//", index)) {
+                    while (index < source.length() && source.charAt(index) != '\n') {
+                        index++;
+                    }
+                } else if (source.startsWith("/*", index)) {
+                    int end = source.indexOf("*/", index + 2);
+                    if (end == -1) {
+                        throw new UnsupportedPacException("Unterminated comment in line " + line);
+                    }
+                    for (int i = index; i < end; i++) {
+                        if (source.charAt(i) == '\n') {
+                            line++;
+                        }
+                    }
+                    index = end + 2;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+}
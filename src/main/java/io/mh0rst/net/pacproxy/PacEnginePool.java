@@ -0,0 +1,173 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A bounded pool of script engines which all have evaluated the PAC shim and the PAC file. Script engines must not be
+ * invoked concurrently, so each evaluation borrows an engine exclusively and returns it afterwards.
+ */
+public class PacEnginePool implements PacEvaluator {
+
+    private final BlockingQueue<ScriptEngine> engines;
+
+    private final boolean usePACExtensions;
+
+    private final SecureScriptEngine.Backend backend;
+
+    private final DomainLists domainLists = new DomainLists();
+
+    /**
+     * Creates the given amount of engines and evaluates the shim and the PAC source in each of them.
+     * 
+     * @param shimSource
+     * @param pacSource
+     * @param size
+     * @param backend
+     * @throws ScriptException
+     */
+    public PacEnginePool(String shimSource, String pacSource, int size, SecureScriptEngine.Backend backend)
+            throws ScriptException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Engine pool size must be at least 1");
+        }
+        this.backend = backend;
+        engines = new ArrayBlockingQueue<>(size);
+        boolean extensions = false;
+        DomainLists previous = DomainLists.enter(domainLists);
+        try {
+            for (ScriptEngine engine : SecureScriptEngine.newEngines(backend, size)) {
+                engine.eval(shimSource);
+                engine.eval(pacSource);
+                extensions = engine.get("FindProxyForURLEx") != null;
+                engines.add(engine);
+            }
+        } finally {
+            DomainLists.exit(previous);
+        }
+        usePACExtensions = extensions;
+    }
+
+    /**
+     * Calls FindProxyForURL (or FindProxyForURLEx, if defined by the PAC file) on a pooled engine. Blocks until an
+     * engine is available.
+     */
+    @Override
+    public String findProxyForURL(String url, String host) throws ScriptException, NoSuchMethodException {
+        ScriptEngine engine;
+        try {
+            engine = engines.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException("Interrupted while waiting for a PAC engine");
+        }
+        try {
+            return invoke(engine, url, host);
+        } finally {
+            engines.add(engine);
+        }
+    }
+
+    /**
+     * Borrows every engine of this pool and evaluates all given URLs on each of them in the given executor, so every
+     * engine has compiled the PAC file and its functions. Other evaluations wait until an engine is done. Returns the
+     * number of failed evaluations.
+     * 
+     * @param urls
+     * @param executor
+     * @throws InterruptedException
+     */
+    public int warmUp(List<String> urls, ExecutorService executor) throws InterruptedException {
+        List<ScriptEngine> borrowed = new ArrayList<>(size());
+        try {
+            while (borrowed.size() < size()) {
+                borrowed.add(engines.take());
+            }
+        } catch (InterruptedException e) {
+            engines.addAll(borrowed);
+            throw e;
+        }
+        List<Future<Integer>> results = new ArrayList<>(borrowed.size());
+        for (ScriptEngine engine : borrowed) {
+            results.add(executor.submit(() -> {
+                try {
+                    return warmUp(engine, urls);
+                } finally {
+                    engines.add(engine);
+                }
+            }));
+        }
+        int failures = 0;
+        for (Future<Integer> result : results) {
+            try {
+                failures += result.get();
+            } catch (ExecutionException e) {
+                failures += urls.size();
+            }
+        }
+        return failures;
+    }
+
+    private int warmUp(ScriptEngine engine, List<String> urls) {
+        DnsResolver resolver = PacFunctions.getResolver();
+        int failures = 0;
+        for (String url : urls) {
+            String host = RequestTargets.host(url);
+            resolver.beginEvaluation();
+            try {
+                invoke(engine, url, host == null ? url : host);
+            } catch (ScriptException | NoSuchMethodException e) {
+                failures++;
+            } finally {
+                resolver.endEvaluation();
+            }
+        }
+        return failures;
+    }
+
+    private String invoke(ScriptEngine engine, String url, String host) throws ScriptException,
+                                                                       NoSuchMethodException {
+        DomainLists previous = DomainLists.enter(domainLists);
+        try {
+            Object result = ((Invocable) engine).invokeFunction(usePACExtensions ? "FindProxyForURLEx"
+                                                                                 : "FindProxyForURL",
+                                                                url, host);
+            return result == null || SecureScriptEngine.isUndefined(result, backend) ? null : result.toString();
+        } finally {
+            DomainLists.exit(previous);
+        }
+    }
+
+    /**
+     * Returns the number of engines in this pool.
+     */
+    public int size() {
+        return engines.size() + engines.remainingCapacity();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import javax.script.ScriptException;
+
+/**
+ * Decides which proxies to use for a request, the Java side of the PAC function FindProxyForURL.
+ */
+public interface PacEvaluator {
+
+    /**
+     * Returns the PAC result string for the given request, e.g. "PROXY proxy:8080; DIRECT", or null if the PAC file
+     * did not return a value.
+     * 
+     * @param url
+     * @param host
+     * @throws ScriptException
+     * @throws NoSuchMethodException
+     */
+    String findProxyForURL(String url, String host) throws ScriptException, NoSuchMethodException;
+}
@@ -17,13 +17,7 @@
  */
 package io.mh0rst.net.pacproxy;
 
-import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.Collections;
-import java.util.Enumeration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,13 +31,31 @@ public class PacFunctions {
 
     private static final Logger LOG = LoggerFactory.getLogger(PacFunctions.class);
 
+    private static volatile DnsResolver resolver = new DnsResolver();
+
+    /**
+     * Replaces the resolver used by the DNS related functions.
+     * 
+     * @param dnsResolver
+     */
+    static void setResolver(DnsResolver dnsResolver) {
+        resolver = dnsResolver;
+    }
+
+    /**
+     * Returns the resolver used by the DNS related functions.
+     */
+    static DnsResolver getResolver() {
+        return resolver;
+    }
+
     /**
      * Prints given object to the log.
      * 
      * @param object
      */
     public static void log(Object object) {
-        LOG.info(object.toString());
+        ScriptLog.log(String.valueOf(object));
     }
 
     /**
@@ -53,7 +65,62 @@ public class PacFunctions {
      * @param domain
      */
     public static boolean dnsDomainIs(String host, String domain) {
-        return host != null && domain != null && host.length() >= domain.length() && host.endsWith(domain);
+        long start = PacMetrics.start();
+        try {
+            return host != null && domain != null && host.length() >= domain.length() && host.endsWith(domain);
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.DNS_DOMAIN_IS, start);
+        }
+    }
+
+    /**
+     * Registers a list of domains for {@link #dnsDomainIsAny(String, String)}, replacing any list registered with the
+     * same ID. Meant to be called once when the PAC file is loaded, the list belongs to the evaluator of that PAC file.
+     * 
+     * @param listId
+     * @param domains
+     */
+    public static void registerDomainList(String listId, String[] domains) {
+        if (listId == null || domains == null) {
+            return;
+        }
+        DomainLists lists = DomainLists.current();
+        if (lists == null) {
+            LOG.debug("Ignoring domain list " + listId + " registered outside of a PAC evaluator");
+            return;
+        }
+        lists.register(listId, domains);
+    }
+
+    /**
+     * Returns true if dnsDomainIs(host, domain) is true for any domain of the given list.
+     * 
+     * @param host
+     * @param listId ID of a list registered with {@link #registerDomainList(String, String[])}
+     */
+    public static boolean dnsDomainIsAny(String host, String listId) {
+        return dnsDomainIsAny(DomainLists.current(), host, listId);
+    }
+
+    /**
+     * Returns true if dnsDomainIs(host, domain) is true for any domain of the given list.
+     * 
+     * @param lists The lists of the running evaluator
+     * @param host
+     * @param listId
+     */
+    static boolean dnsDomainIsAny(DomainLists lists, String host, String listId) {
+        long start = PacMetrics.start();
+        try {
+            DomainSuffixTrie trie = lists == null || listId == null ? null : lists.get(listId);
+            if (trie == null) {
+                LOG.debug("Unknown domain list " + listId);
+                return false;
+            }
+            return trie.matches(host);
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.DNS_DOMAIN_IS_ANY, start);
+        }
     }
 
     /**
@@ -62,18 +129,23 @@ public class PacFunctions {
      * @param host
      */
     public static int dnsDomainLevels(String host) {
-        if (host == null) {
-            return 0;
-        }
-        int count = 0;
-        int i = -1;
-        do {
-            i = host.indexOf('.', i + 1);
-            if (i != -1) {
-                count++;
+        long start = PacMetrics.start();
+        try {
+            if (host == null) {
+                return 0;
             }
-        } while (i != -1);
-        return count;
+            int count = 0;
+            int i = -1;
+            do {
+                i = host.indexOf('.', i + 1);
+                if (i != -1) {
+                    count++;
+                }
+            } while (i != -1);
+            return count;
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.DNS_DOMAIN_LEVELS, start);
+        }
     }
 
     /**
@@ -82,24 +154,144 @@ public class PacFunctions {
      * @param host
      */
     public static String dnsResolve(String host) {
-        if (host == null) {
-            return "";
+        long start = PacMetrics.start();
+        try {
+            if (host == null) {
+                return "";
+            }
+            InetAddress address = resolver.resolve(host);
+            return address == null ? "" : address.getHostAddress();
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.DNS_RESOLVE, start);
         }
+    }
+
+    /**
+     * Resolves the given host name and returns all IPv4 and IPv6 addresses separated by semicolons. An empty string is
+     * returned if the resolution fails.
+     * 
+     * @param host
+     */
+    public static String dnsResolveEx(String host) {
+        long start = PacMetrics.start();
         try {
-            return InetAddress.getByName(host).getHostAddress();
-        } catch (UnknownHostException e) {
-            LOG.debug("Could not resolve " + host, e);
-            return "";
+            if (nullOrEmpty(host)) {
+                return "";
+            }
+            InetAddress[] addresses = resolver.resolveAll(host);
+            if (addresses == null) {
+                return "";
+            }
+            StringBuilder result = new StringBuilder(addresses.length * 16);
+            for (InetAddress address : addresses) {
+                if (result.length() > 0) {
+                    result.append(';');
+                }
+                result.append(address.getHostAddress());
+            }
+            return result.toString();
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.DNS_RESOLVE_EX, start);
         }
     }
 
+    /**
+     * Sorts a semicolon separated list of IP addresses, IPv6 addresses before IPv4 addresses and each in ascending
+     * order. Returns null if the list contains anything but IP addresses.
+     * 
+     * @param addressList
+     */
+    public static String sortIpAddressList(String addressList) {
+        long start = PacMetrics.start();
+        try {
+            if (nullOrEmpty(addressList)) {
+                return null;
+            }
+            int count = 1;
+            for (int i = 0; i < addressList.length(); i++) {
+                if (addressList.charAt(i) == ';') {
+                    count++;
+                }
+            }
+            byte[][] addresses = new byte[count][];
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            int parsed = 0;
+            int begin = 0;
+            while (begin <= addressList.length()) {
+                int end = addressList.indexOf(';', begin);
+                if (end < 0) {
+                    end = addressList.length();
+                }
+                int next = end + 1;
+                while (begin < end && Character.isWhitespace(addressList.charAt(begin))) {
+                    begin++;
+                }
+                while (end > begin && Character.isWhitespace(addressList.charAt(end - 1))) {
+                    end--;
+                }
+                if (begin < end) {
+                    byte[] address = IpAddresses.parse(addressList, begin, end);
+                    if (address == null) {
+                        return null;
+                    }
+                    // insertion sort, address lists are short
+                    int position = parsed;
+                    while (position > 0 && compareAddresses(addresses[position - 1], address) > 0) {
+                        addresses[position] = addresses[position - 1];
+                        starts[position] = starts[position - 1];
+                        ends[position] = ends[position - 1];
+                        position--;
+                    }
+                    addresses[position] = address;
+                    starts[position] = begin;
+                    ends[position] = end;
+                    parsed++;
+                }
+                begin = next;
+            }
+            if (parsed == 0) {
+                return null;
+            }
+            StringBuilder result = new StringBuilder(addressList.length());
+            for (int i = 0; i < parsed; i++) {
+                if (i > 0) {
+                    result.append(';');
+                }
+                result.append(addressList, starts[i], ends[i]);
+            }
+            return result.toString();
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.SORT_IP_ADDRESS_LIST, start);
+        }
+    }
+
+    private static int compareAddresses(byte[] first, byte[] second) {
+        if (first.length != second.length) {
+            // IPv6 first
+            return second.length - first.length;
+        }
+        for (int i = 0; i < first.length; i++) {
+            int difference = (first[i] & 0xff) - (second[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
     /**
      * Returns true if the given host name is a plain host name (does not contain any dots).
      * 
      * @param host
      */
     public static boolean isPlainHostName(String host) {
-        return host != null && host.indexOf('.') == -1;
+        long start = PacMetrics.start();
+        try {
+            return host != null && host.indexOf('.') == -1;
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.IS_PLAIN_HOST_NAME, start);
+        }
     }
 
     /**
@@ -108,37 +300,61 @@ public class PacFunctions {
      * @param host
      */
     public static boolean isResolvable(String host) {
-        if (nullOrEmpty(host)) {
-            return false;
-        }
+        long start = PacMetrics.start();
         try {
-            InetAddress.getByName(host);
-            return true;
-        } catch (UnknownHostException e) {
-            LOG.debug("Could not resolve " + host, e);
-            return false;
+            return !nullOrEmpty(host) && resolver.resolve(host) != null;
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.IS_RESOLVABLE, start);
         }
     }
 
     /**
-     * Returns true if the resolved IPv4 address of the given host name is part of the subnet denoted by the pattern and
-     * the mask.
+     * Returns true if the IP address of the given host is part of the subnet denoted by the pattern and the mask. IP
+     * addresses are used as they are, host names are resolved.
      * 
      * @param host A host name or IP address
      * @param pattern A subnet pattern, e.g. 10.1.2.0
      * @param mask A mask for the subnet, e.g. 255.255.255.0
      */
     public static boolean isInNet(String host, String pattern, String mask) {
-        if (nullOrEmpty(host) || nullOrEmpty(pattern) || nullOrEmpty(mask)) {
-            return false;
+        long start = PacMetrics.start();
+        try {
+            if (nullOrEmpty(host) || nullOrEmpty(pattern) || nullOrEmpty(mask)) {
+                return false;
+            }
+            SubnetPattern subnet = SubnetPattern.forMask(pattern, mask);
+            if (subnet == null) {
+                InetAddress patternAddress = resolver.resolve(pattern);
+                InetAddress maskAddress = resolver.resolve(mask);
+                if (patternAddress == null || maskAddress == null ||
+                    patternAddress.getAddress().length != maskAddress.getAddress().length) {
+                    return false;
+                }
+                subnet = new SubnetPattern(patternAddress.getAddress(), maskAddress.getAddress());
+            }
+            return isInSubnet(host, subnet);
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.IS_IN_NET, start);
         }
+    }
+
+    /**
+     * Returns true if the given IPv4 or IPv6 address is part of the subnet denoted by the prefix. Host names are
+     * resolved first.
+     * 
+     * @param address An IP address or host name
+     * @param prefix A subnet in CIDR notation, e.g. 10.1.2.0/24 or fe80::/10
+     */
+    public static boolean isInNetEx(String address, String prefix) {
+        long start = PacMetrics.start();
         try {
-            SubnetPattern subnet = new SubnetPattern(InetAddress.getByName(pattern).getAddress(),
-                                                     InetAddress.getByName(mask).getAddress());
-            return subnet.isInMask(InetAddress.getByName(host).getAddress());
-        } catch (UnknownHostException e) {
-            LOG.debug("Could not resolve " + host, e);
-            return false;
+            if (nullOrEmpty(address) || nullOrEmpty(prefix)) {
+                return false;
+            }
+            SubnetPattern subnet = SubnetPattern.forPrefix(prefix);
+            return subnet != null && isInSubnet(address, subnet);
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.IS_IN_NET_EX, start);
         }
     }
 
@@ -150,78 +366,82 @@ public class PacFunctions {
      * @param hostdom
      */
     public static boolean localHostOrDomainIs(String host, String hostdom) {
-        return Objects.equal(host, hostdom) || hostdom != null && hostdom.startsWith(host + ".");
+        long start = PacMetrics.start();
+        try {
+            return Objects.equal(host, hostdom) || hostdom != null && hostdom.startsWith(host + ".");
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.LOCAL_HOST_OR_DOMAIN_IS, start);
+        }
     }
 
     /**
-     * Attempts to detect the IPv4 address of the machine running this proxy.
+     * Returns the IPv4 address of the machine running this proxy. The address is detected in the background, see
+     * {@link LocalAddresses}.
      */
     public static String myIpAddress() {
-        String address = null;
+        long start = PacMetrics.start();
         try {
-            address = InetAddress.getLocalHost().getHostAddress();
-            if (!address.startsWith("127")) {
-                return address;
-            }
-        } catch (UnknownHostException e) {
-            LOG.debug("Could not resolve local hostname", e);
-        }
-        try {
-            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                if (iface.isLoopback()) {
-                    continue;
-                }
-                Enumeration<InetAddress> inetAddresses = iface.getInetAddresses();
-                while (inetAddresses.hasMoreElements()) {
-                    InetAddress ifaceAddress = inetAddresses.nextElement();
-                    if (!ifaceAddress.isLinkLocalAddress() && !(ifaceAddress instanceof Inet6Address)) {
-                        return ifaceAddress.getHostAddress();
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            LOG.warn("Could not resolve own IP address", e);
+            return LocalAddresses.getIpAddress();
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.MY_IP_ADDRESS, start);
         }
-        return address == null ? "" : address;
     }
 
     /**
-     * Attempts to detect all IP addresses of the machine running this proxy.
+     * Returns all IP addresses of the machine running this proxy, separated by semicolons.
      */
     public static String myIpAddressEx() {
-        StringBuilder addresses = new StringBuilder();
+        long start = PacMetrics.start();
         try {
-            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                if (iface.isLoopback()) {
-                    continue;
-                }
-                Enumeration<InetAddress> inetAddresses = iface.getInetAddresses();
-                while (inetAddresses.hasMoreElements()) {
-                    InetAddress ifaceAddress = inetAddresses.nextElement();
-                    if (!ifaceAddress.isLinkLocalAddress()) {
-                        if (addresses.length() > 0) {
-                            addresses.append(';');
-                        }
-                        addresses.append(ifaceAddress.getHostAddress());
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            LOG.warn("Could not resolve own IP address", e);
+            return LocalAddresses.getIpAddresses();
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.MY_IP_ADDRESS_EX, start);
         }
-        return addresses.toString();
     }
 
     /**
      * Returns true if given string matches the shell expression.
      * 
      * @param str
-     * @param shexp An expression with the wildcards ? (one arbitrary character) and * (any amount of arbitrary
+     * @param shexp An expression with the wildcards ? (exactly one arbitrary character) and * (any amount of arbitrary
      *            characters).
      */
     public static boolean shExpMatch(String str, String shexp) {
-        return str != null && shexp != null &&
-               str.matches(shexp.replace(".", "\\.").replace("?", ".?").replace("*", ".*"));
+        long start = PacMetrics.start();
+        try {
+            return str != null && shexp != null && ShellExpression.compile(shexp).matches(str);
+        } finally {
+            PacMetrics.recordFunction(PacMetrics.Function.SH_EXP_MATCH, start);
+        }
+    }
+
+    /**
+     * Returns the address bytes of the given IP address or the first resolved address of the given host name, limited
+     * to addresses of the given length. Returns null if there is no such address.
+     * 
+     * @param host
+     * @param length 4 for IPv4, 16 for IPv6
+     */
+    static byte[] addressOf(String host, int length) {
+        byte[] literal = IpAddresses.parse(host);
+        if (literal != null) {
+            return literal.length == length ? literal : null;
+        }
+        InetAddress[] addresses = resolver.resolveAll(host);
+        if (addresses != null) {
+            for (InetAddress address : addresses) {
+                byte[] addressBytes = address.getAddress();
+                if (addressBytes.length == length) {
+                    return addressBytes;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isInSubnet(String host, SubnetPattern subnet) {
+        byte[] address = addressOf(host, subnet.getAddressLength());
+        return address != null && subnet.isInMask(address);
     }
 
     private static boolean nullOrEmpty(String host) {
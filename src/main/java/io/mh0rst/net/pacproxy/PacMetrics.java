@@ -0,0 +1,200 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects statistics of the PAC evaluation: evaluation latency, calls and time of the PAC functions, decisions and
+ * errors. Recording is disabled until {@link #enable()} is called, so the counters cost nothing otherwise.
+ */
+public final class PacMetrics {
+
+    /**
+     * The instrumented PAC functions.
+     */
+    public enum Function {
+        DNS_DOMAIN_IS("dnsDomainIs"), DNS_DOMAIN_IS_ANY("dnsDomainIsAny"), DNS_DOMAIN_LEVELS("dnsDomainLevels"),
+        DNS_RESOLVE("dnsResolve"), DNS_RESOLVE_EX("dnsResolveEx"), IS_PLAIN_HOST_NAME("isPlainHostName"),
+        IS_RESOLVABLE("isResolvable"), IS_IN_NET("isInNet"), IS_IN_NET_EX("isInNetEx"),
+        LOCAL_HOST_OR_DOMAIN_IS("localHostOrDomainIs"), MY_IP_ADDRESS("myIpAddress"),
+        MY_IP_ADDRESS_EX("myIpAddressEx"), SH_EXP_MATCH("shExpMatch"), SORT_IP_ADDRESS_LIST("sortIpAddressList");
+
+        private final String scriptName;
+
+        Function(String scriptName) {
+            this.scriptName = scriptName;
+        }
+
+        /**
+         * Returns the name of the function in PAC files.
+         */
+        public String getScriptName() {
+            return scriptName;
+        }
+    }
+
+    /**
+     * Upper bounds of the evaluation latency histogram buckets in seconds.
+     */
+    static final double[] LATENCY_BUCKETS = { 0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1,
+                                              5 };
+
+    private static final long[] LATENCY_BUCKET_NANOS = new long[LATENCY_BUCKETS.length];
+
+    private static final LongAdder[] LATENCY_COUNTS = newAdders(LATENCY_BUCKETS.length + 1);
+
+    private static final LongAdder LATENCY_NANOS = new LongAdder();
+
+    private static final LongAdder[] FUNCTION_CALLS = newAdders(Function.values().length);
+
+    private static final LongAdder[] FUNCTION_NANOS = newAdders(Function.values().length);
+
+    private static final ConcurrentMap<String, LongAdder> DECISIONS = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, LongAdder> ERRORS = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled;
+
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            LATENCY_BUCKET_NANOS[i] = (long) (LATENCY_BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private PacMetrics() {
+    }
+
+    /**
+     * Starts recording.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * Returns the start time for a measurement, to be passed to one of the record methods.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a call of a PAC function.
+     * 
+     * @param function
+     * @param start Value of {@link #start()} before the call
+     */
+    public static void recordFunction(Function function, long start) {
+        if (enabled) {
+            FUNCTION_CALLS[function.ordinal()].increment();
+            FUNCTION_NANOS[function.ordinal()].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the duration of a FindProxyForURL evaluation.
+     * 
+     * @param start Value of {@link #start()} before the evaluation
+     */
+    public static void recordEvaluation(long start) {
+        if (enabled) {
+            long nanos = System.nanoTime() - start;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKET_NANOS.length && nanos > LATENCY_BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            LATENCY_COUNTS[bucket].increment();
+            LATENCY_NANOS.add(nanos);
+        }
+    }
+
+    /**
+     * Records the routing decision of a request.
+     * 
+     * @param result The primary PAC result, e.g. DIRECT or PROXY proxy:8080
+     */
+    public static void recordDecision(String result) {
+        if (enabled) {
+            increment(DECISIONS, result);
+        }
+    }
+
+    /**
+     * Records an error of the PAC evaluation.
+     * 
+     * @param type
+     */
+    public static void recordError(String type) {
+        if (enabled) {
+            increment(ERRORS, type);
+        }
+    }
+
+    /**
+     * Returns the number of evaluations per latency bucket, the last bucket counts evaluations exceeding all bounds of
+     * {@link #LATENCY_BUCKETS}.
+     */
+    static long[] getLatencyCounts() {
+        long[] counts = new long[LATENCY_COUNTS.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = LATENCY_COUNTS[i].sum();
+        }
+        return counts;
+    }
+
+    static long getLatencyNanos() {
+        return LATENCY_NANOS.sum();
+    }
+
+    static long getFunctionCalls(Function function) {
+        return FUNCTION_CALLS[function.ordinal()].sum();
+    }
+
+    static long getFunctionNanos(Function function) {
+        return FUNCTION_NANOS[function.ordinal()].sum();
+    }
+
+    static Map<String, LongAdder> getDecisions() {
+        return DECISIONS;
+    }
+
+    static Map<String, LongAdder> getErrors() {
+        return ERRORS;
+    }
+
+    private static void increment(ConcurrentMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -21,11 +21,13 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
 
 import javax.script.ScriptException;
 
 import org.littleshoot.proxy.HttpProxyServerBootstrap;
 import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +44,76 @@ public class PacProxy {
 
     private String pacLocation;
 
+    private int enginePoolSize = Runtime.getRuntime().availableProcessors();
+
+    private int decisionCacheSize;
+
+    private int decisionCacheTtl = 300;
+
+    private int decisionCachePathSegments = DecisionCache.HOST_ONLY;
+
+    private boolean compileRules;
+
+    private SecureScriptEngine.Backend backend = SecureScriptEngine.Backend.NASHORN;
+
+    private int dnsPositiveTtl = 60;
+
+    private int dnsNegativeTtl = 10;
+
+    private int dnsBudget = 2000;
+
+    private int reloadInterval;
+
+    private int localAddressInterval = 30;
+
+    private int evaluationDeadline;
+
+    private boolean fallbackToLastDecision;
+
+    private int maxConcurrentEvaluations = 256;
+
+    private String warmUpFile;
+
+    private String saveHostsFile;
+
+    private int acceptorThreads;
+
+    private int clientToProxyThreads;
+
+    private int proxyToServerThreads;
+
+    private int idleConnectionTimeout;
+
+    private int connectTimeout;
+
+    private long readThrottle;
+
+    private long writeThrottle;
+
+    private String replayFile;
+
+    private String replayDiffLocation;
+
+    private String replayHostsFile;
+
+    private int replayThreads;
+
+    private int upstreamDownTime;
+
+    private UpstreamBalancer.Strategy balancingStrategy;
+
+    private int upstreamProbeInterval;
+
+    private String accessLogFile;
+
+    private int accessLogSize = 100;
+
+    private int accessLogFiles = 5;
+
+    private String metricsHost;
+
+    private int metricsPort;
+
     /**
      * Starts PacProxy.
      * 
@@ -57,16 +129,86 @@ public class PacProxy {
         try {
             HttpProxyServerBootstrap proxy = DefaultHttpProxyServer.bootstrap();
 
-            if (pacLocation == null || !Files.exists(Paths.get(pacLocation)) ||
-                !Files.isReadable(Paths.get(pacLocation))) {
+            if (pacLocation == null || !PacProxyManager.isURL(pacLocation) &&
+                                       (!Files.exists(Paths.get(pacLocation)) ||
+                                        !Files.isReadable(Paths.get(pacLocation)))) {
                 LOG.error("PAC file not specified or not readable: " + pacLocation);
                 return;
             } else {
-                PacProxyManager pcm = new PacProxyManager(pacLocation);
+                DnsResolver.NameService nameService = DnsResolver.SYSTEM;
+                if (replayHostsFile != null) {
+                    nameService = Replay.hostsFile(Paths.get(replayHostsFile));
+                }
+                PacFunctions.setResolver(new DnsResolver(nameService, dnsPositiveTtl, dnsNegativeTtl, dnsBudget, 8));
+                LocalAddresses.startRefresh(localAddressInterval);
+                PacProxyManager pcm = newManager(pacLocation);
+                if (replayFile != null) {
+                    replay(pcm);
+                    return;
+                }
+                if (evaluationDeadline > 0) {
+                    pcm.setEvaluationExecutor(new EvaluationExecutor(maxConcurrentEvaluations, evaluationDeadline),
+                                              fallbackToLastDecision);
+                    LOG.info("Evaluating PAC file with a deadline of " + evaluationDeadline + " ms");
+                }
+                if (upstreamDownTime > 0) {
+                    UpstreamHealth health = new UpstreamHealth(upstreamDownTime);
+                    if (upstreamProbeInterval > 0) {
+                        health.startProbes(upstreamProbeInterval);
+                    }
+                    pcm.setUpstreamHealth(health);
+                }
+                if (balancingStrategy != null) {
+                    pcm.setUpstreamBalancer(new UpstreamBalancer(balancingStrategy));
+                    LOG.info("Balancing requests across upstream proxies using " + balancingStrategy.getOptionName());
+                }
+                if (dnsPositiveTtl > 0) {
+                    pcm.startUpstreamRefresh(dnsPositiveTtl);
+                }
                 proxy.withChainProxyManager(pcm);
                 LOG.info("Loaded PAC file " + pacLocation);
+                WarmUp warmUp = new WarmUp(pcm, enginePoolSize);
+                if (warmUpFile != null) {
+                    try {
+                        warmUp.replay(Paths.get(warmUpFile));
+                    } catch (IOException e) {
+                        LOG.warn("Could not read warm-up file " + warmUpFile + ", starting without warm-up", e);
+                    }
+                }
+                if (saveHostsFile != null) {
+                    warmUp.saveHostsOnShutdown(Paths.get(saveHostsFile));
+                }
+                if (accessLogFile != null) {
+                    AccessLog accessLog = new AccessLog(Paths.get(accessLogFile), accessLogSize * 1024L * 1024L,
+                                                        accessLogFiles);
+                    try {
+                        accessLog.start();
+                    } catch (IOException e) {
+                        LOG.error("Could not open access log " + accessLogFile, e);
+                        return;
+                    }
+                    pcm.setAccessLog(accessLog);
+                    LOG.info("Writing access log to " + accessLogFile);
+                }
+                if (reloadInterval > 0) {
+                    try {
+                        new PacReloader(pcm, reloadInterval).start();
+                    } catch (IOException e) {
+                        LOG.error("Could not watch PAC file " + pacLocation + " for changes", e);
+                        return;
+                    }
+                }
+                if (metricsHost != null) {
+                    try {
+                        new MetricsServer(pcm).start(new InetSocketAddress(metricsHost, metricsPort));
+                    } catch (IOException e) {
+                        LOG.error("Could not start metrics server on " + metricsHost + ":" + metricsPort, e);
+                        return;
+                    }
+                }
             }
 
+            configureTransport(proxy);
             proxy.withAddress(new InetSocketAddress(bindHost, bindPort));
             LOG.info("Binding proxy to " + bindHost + ":" + bindPort);
 
@@ -77,6 +219,58 @@ public class PacProxy {
         }
     }
 
+    private void configureTransport(HttpProxyServerBootstrap proxy) {
+        if (acceptorThreads > 0 || clientToProxyThreads > 0 || proxyToServerThreads > 0) {
+            ThreadPoolConfiguration threads = new ThreadPoolConfiguration();
+            if (acceptorThreads > 0) {
+                threads.withAcceptorThreads(acceptorThreads);
+            }
+            if (clientToProxyThreads > 0) {
+                threads.withClientToProxyWorkerThreads(clientToProxyThreads);
+            }
+            if (proxyToServerThreads > 0) {
+                threads.withProxyToServerWorkerThreads(proxyToServerThreads);
+            }
+            proxy.withThreadPoolConfiguration(threads);
+            LOG.info("Using " + threads.getAcceptorThreads() + " acceptor, " + threads.getClientToProxyWorkerThreads() +
+                     " client and " + threads.getProxyToServerWorkerThreads() + " server threads");
+        }
+        if (idleConnectionTimeout > 0) {
+            proxy.withIdleConnectionTimeout(idleConnectionTimeout);
+        }
+        if (connectTimeout > 0) {
+            proxy.withConnectTimeout(connectTimeout);
+        }
+        if (readThrottle > 0 || writeThrottle > 0) {
+            proxy.withThrottling(readThrottle, writeThrottle);
+        }
+    }
+
+    private PacProxyManager newManager(String location) throws IOException, ScriptException {
+        PacProxyManager pcm = new PacProxyManager(location, enginePoolSize, compileRules, backend);
+        if (decisionCacheSize > 0) {
+            pcm.setDecisionCache(new DecisionCache(decisionCacheSize, decisionCacheTtl, decisionCachePathSegments));
+            LOG.info("Caching up to " + decisionCacheSize + " PAC decisions for " + decisionCacheTtl + " seconds");
+        }
+        return pcm;
+    }
+
+    private void replay(PacProxyManager pcm) throws IOException, ScriptException {
+        List<String> urls;
+        try {
+            urls = Replay.readUrls(Paths.get(replayFile));
+        } catch (IOException e) {
+            LOG.error("Could not read URLs to replay from " + replayFile, e);
+            return;
+        }
+        Replay replay = new Replay(replayThreads > 0 ? replayThreads : enginePoolSize, System.out);
+        String[] decisions = replay.run(pcm, urls);
+        if (replayDiffLocation != null) {
+            String[] otherDecisions = replay.run(newManager(replayDiffLocation), urls);
+            replay.diff(replayDiffLocation, urls, decisions, otherDecisions);
+        }
+    }
+
     private void parseArguments(String[] args) {
         if (args.length == 0) {
             printHelp();
@@ -84,23 +278,176 @@ public class PacProxy {
         }
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
+            case "-a":
+                checkArgumentPresent(args, ++i, "-a");
+                accessLogFile = args[i];
+                break;
+            case "-an":
+                checkArgumentPresent(args, ++i, "-an");
+                accessLogFiles = checkNumber(args[i], "-an", 0);
+                break;
+            case "-as":
+                checkArgumentPresent(args, ++i, "-as");
+                accessLogSize = checkNumber(args[i], "-as", 1);
+                break;
             case "-b":
                 checkArgumentPresent(args, ++i, "-b");
                 String[] bind = checkBinding(args[i]);
                 bindHost = bind[0];
                 bindPort = Integer.parseInt(bind[1]);
                 break;
+            case "-bw":
+                checkArgumentPresent(args, ++i, "-bw");
+                String[] throttle = args[i].split(":");
+                if (throttle.length != 2) {
+                    throw new IllegalArgumentException("Option -bw requires READ:WRITE bytes per second, 0 is unlimited");
+                }
+                readThrottle = checkNumber(throttle[0], "-bw", 0);
+                writeThrottle = checkNumber(throttle[1], "-bw", 0);
+                break;
+            case "-c":
+                checkArgumentPresent(args, ++i, "-c");
+                decisionCacheSize = checkNumber(args[i], "-c", 1);
+                break;
+            case "-ct":
+                checkArgumentPresent(args, ++i, "-ct");
+                decisionCacheTtl = checkNumber(args[i], "-ct", 1);
+                break;
+            case "-cu":
+                checkArgumentPresent(args, ++i, "-cu");
+                decisionCachePathSegments = checkNumber(args[i], "-cu", 0);
+                break;
+            case "-dn":
+                checkArgumentPresent(args, ++i, "-dn");
+                dnsNegativeTtl = checkNumber(args[i], "-dn", 0);
+                break;
+            case "-dp":
+                checkArgumentPresent(args, ++i, "-dp");
+                dnsPositiveTtl = checkNumber(args[i], "-dp", 0);
+                break;
+            case "-dt":
+                checkArgumentPresent(args, ++i, "-dt");
+                dnsBudget = checkNumber(args[i], "-dt", 1);
+                break;
+            case "-e":
+                checkArgumentPresent(args, ++i, "-e");
+                enginePoolSize = checkNumber(args[i], "-e", 1);
+                break;
             case "-h":
                 printHelp();
                 break;
+            case "-i":
+                checkArgumentPresent(args, ++i, "-i");
+                localAddressInterval = checkNumber(args[i], "-i", 1);
+                break;
+            case "-it":
+                checkArgumentPresent(args, ++i, "-it");
+                idleConnectionTimeout = checkNumber(args[i], "-it", 1);
+                break;
+            case "-ja":
+                checkArgumentPresent(args, ++i, "-ja");
+                acceptorThreads = checkNumber(args[i], "-ja", 1);
+                break;
+            case "-jc":
+                checkArgumentPresent(args, ++i, "-jc");
+                clientToProxyThreads = checkNumber(args[i], "-jc", 1);
+                break;
+            case "-js":
+                checkArgumentPresent(args, ++i, "-js");
+                proxyToServerThreads = checkNumber(args[i], "-js", 1);
+                break;
+            case "-lb":
+                checkArgumentPresent(args, ++i, "-lb");
+                balancingStrategy = UpstreamBalancer.Strategy.forOptionName(args[i]);
+                if (balancingStrategy == null) {
+                    throw new IllegalArgumentException("Option -lb requires one of rr, least or hash");
+                }
+                break;
+            case "-m":
+                checkArgumentPresent(args, ++i, "-m");
+                String[] metricsBind = checkBinding(args[i]);
+                metricsHost = metricsBind[0];
+                metricsPort = Integer.parseInt(metricsBind[1]);
+                break;
+            case "-n":
+                compileRules = true;
+                break;
             case "-p":
                 checkArgumentPresent(args, ++i, "-p");
                 pacLocation = args[i];
                 break;
+            case "-r":
+                checkArgumentPresent(args, ++i, "-r");
+                reloadInterval = checkNumber(args[i], "-r", 1);
+                break;
+            case "-s":
+                checkArgumentPresent(args, ++i, "-s");
+                backend = SecureScriptEngine.Backend.forOptionName(args[i]);
+                if (backend == null) {
+                    throw new IllegalArgumentException("Option -s requires nashorn, graaljs or rhino");
+                }
+                break;
+            case "-t":
+                checkArgumentPresent(args, ++i, "-t");
+                evaluationDeadline = checkNumber(args[i], "-t", 1);
+                break;
+            case "-tc":
+                checkArgumentPresent(args, ++i, "-tc");
+                maxConcurrentEvaluations = checkNumber(args[i], "-tc", 1);
+                break;
+            case "-tf":
+                checkArgumentPresent(args, ++i, "-tf");
+                if ("last".equals(args[i])) {
+                    fallbackToLastDecision = true;
+                } else if ("direct".equals(args[i])) {
+                    fallbackToLastDecision = false;
+                } else {
+                    throw new IllegalArgumentException("Option -tf requires one of direct or last");
+                }
+                break;
+            case "-u":
+                checkArgumentPresent(args, ++i, "-u");
+                upstreamDownTime = checkNumber(args[i], "-u", 1);
+                break;
+            case "-uc":
+                checkArgumentPresent(args, ++i, "-uc");
+                connectTimeout = checkNumber(args[i], "-uc", 1);
+                break;
+            case "-up":
+                checkArgumentPresent(args, ++i, "-up");
+                upstreamProbeInterval = checkNumber(args[i], "-up", 1);
+                break;
+            case "-w":
+                checkArgumentPresent(args, ++i, "-w");
+                warmUpFile = args[i];
+                break;
+            case "-ws":
+                checkArgumentPresent(args, ++i, "-ws");
+                saveHostsFile = args[i];
+                break;
+            case "-x":
+                checkArgumentPresent(args, ++i, "-x");
+                replayFile = args[i];
+                break;
+            case "-xd":
+                checkArgumentPresent(args, ++i, "-xd");
+                replayDiffLocation = args[i];
+                break;
+            case "-xh":
+                checkArgumentPresent(args, ++i, "-xh");
+                replayHostsFile = args[i];
+                break;
+            case "-xt":
+                checkArgumentPresent(args, ++i, "-xt");
+                replayThreads = checkNumber(args[i], "-xt", 1);
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported option " + args[i]);
             }
         }
+        if (upstreamProbeInterval > 0 && upstreamDownTime == 0) {
+            throw new IllegalArgumentException("Option -up requires option -u");
+        }
     }
 
     private String[] checkBinding(String binding) {
@@ -111,6 +458,18 @@ public class PacProxy {
         return bind;
     }
 
+    private int checkNumber(String value, String option, int minimum) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= minimum) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Option " + option + " requires a number of at least " + minimum);
+    }
+
     private void checkArgumentPresent(String[] args, int atPosition, String option) {
         if (atPosition >= args.length) {
             throw new IllegalArgumentException("Option " + option + " requires a parameter");
@@ -121,8 +480,41 @@ public class PacProxy {
         System.out.println("PacProxy: A HTTP proxy driven by a PAC file.");
         System.out.println();
         System.out.println("Options:");
+        System.out.println("  -a <FILE> (Writes the routing decision of each request to FILE)");
+        System.out.println("  -an <COUNT> (Number of rotated access logs to keep, default 5)");
+        System.out.println("  -as <MB> (Rotates the access log when it reaches MB megabytes, default 100)");
         System.out.println("  -b <HOST/IP:PORT> (Binds the proxy port to given interface address and port, default 127.0.0.1:3128)");
+        System.out.println("  -bw <READ:WRITE> (Limits reading from and writing to clients to the given bytes per second, 0 is unlimited)");
+        System.out.println("  -c <ENTRIES> (Caches up to ENTRIES PAC decisions per host, disabled by default)");
+        System.out.println("  -ct <SECONDS> (Time to keep cached PAC decisions, default 300)");
+        System.out.println("  -cu <SEGMENTS> (Caches PAC decisions per URL prefix with up to SEGMENTS path segments instead of per host)");
+        System.out.println("  -dn <SECONDS> (Time to cache failed DNS lookups of the PAC functions, default 10)");
+        System.out.println("  -dp <SECONDS> (Time to cache successful DNS lookups of the PAC functions and upstream proxies, default 60)");
+        System.out.println("  -dt <MILLIS> (Maximum time a PAC evaluation may wait for DNS lookups, default 2000)");
+        System.out.println("  -e <COUNT> (Number of script engines evaluating the PAC file concurrently, default number of CPUs)");
         System.out.println("  -h (Displays this text)");
-        System.out.println("  -p <PACFILE> (Location of the PAC file)");
+        System.out.println("  -i <SECONDS> (Interval to detect changes of the own IP addresses returned by myIpAddress, default 30)");
+        System.out.println("  -it <SECONDS> (Closes connections idle for SECONDS seconds, default 70)");
+        System.out.println("  -ja <COUNT> (Number of threads accepting connections, default 2)");
+        System.out.println("  -jc <COUNT> (Number of threads handling client connections, default 8)");
+        System.out.println("  -js <COUNT> (Number of threads handling upstream and server connections, default 8)");
+        System.out.println("  -lb <rr|least|hash> (Balances requests across all proxies returned by the PAC file: round-robin, least connections or by host)");
+        System.out.println("  -m <HOST/IP:PORT> (Serves metrics in Prometheus format on http://HOST:PORT/metrics)");
+        System.out.println("  -n (Compiles the PAC file into native rules if it only uses common PAC functions)");
+        System.out.println("  -p <PACFILE/URL> (Location of the PAC file)");
+        System.out.println("  -r <SECONDS> (Reloads the PAC file on changes, URLs are polled every SECONDS seconds)");
+        System.out.println("  -s <nashorn|graaljs|rhino> (Script engine evaluating the PAC file, default nashorn)");
+        System.out.println("  -t <MILLIS> (Evaluates the PAC file outside the I/O threads and waits at most MILLIS for a decision)");
+        System.out.println("  -tc <COUNT> (Maximum number of concurrent evaluations with -t, default 256)");
+        System.out.println("  -tf <direct|last> (Decision if -t is exceeded: DIRECT or the last decision for the host, default direct)");
+        System.out.println("  -u <SECONDS> (Tries upstream proxies after a failed connection last for SECONDS seconds, disabled by default)");
+        System.out.println("  -uc <MILLIS> (Timeout for connecting to upstream proxies and servers, default 40000)");
+        System.out.println("  -up <SECONDS> (Probes upstream proxies which are down every SECONDS seconds, requires -u)");
+        System.out.println("  -w <FILE> (Evaluates the URLs or hosts listed in FILE before accepting connections)");
+        System.out.println("  -ws <FILE> (Saves the requested hosts to FILE on shutdown, e.g. for -w on the next start)");
+        System.out.println("  -x <FILE> (Replays the URLs of an access log through the PAC file and reports the results instead of starting the proxy)");
+        System.out.println("  -xd <PACFILE/URL> (Replays the URLs through a second PAC file as well and reports the different decisions)");
+        System.out.println("  -xh <FILE> (Resolves host names from a hosts file instead of DNS)");
+        System.out.println("  -xt <THREADS> (Number of threads replaying the URLs, default number of script engines)");
     }
 }
@@ -17,18 +17,32 @@
  */
 package io.mh0rst.net.pacproxy;
 
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-import javax.script.Invocable;
-import javax.script.ScriptEngine;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.script.ScriptException;
 
 import org.littleshoot.proxy.ChainedProxy;
@@ -37,6 +51,10 @@ import org.littleshoot.proxy.ChainedProxyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 
 /**
@@ -48,28 +66,345 @@ public class PacProxyManager implements ChainedProxyManager {
 
     private static final String PROXY = "PROXY ";
 
+    private static final String HTTPS = "HTTPS ";
+
+    private static final String SOCKS = "SOCKS";
+
     private static final Logger LOG = LoggerFactory.getLogger(PacProxyManager.class);
 
-    private ScriptEngine pacScript;
+    private static final int URL_TIMEOUT_MILLIS = 30000;
+
+    private static final int MAX_PARSED_RESULTS = 1024;
+
+    private static final int MAX_LAST_DECISIONS = 10000;
+
+    private static final int MAX_UPSTREAMS = 1024;
+
+    private static final List<ChainedProxy> DIRECT_ONLY = Collections.singletonList(
+            ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION);
+
+    private final String pacLocation;
+
+    private final int enginePoolSize;
+
+    private final boolean compileRules;
+
+    private final SecureScriptEngine.Backend backend;
+
+    private volatile PacEvaluator evaluator;
+
+    private String pacSource;
+
+    private volatile DecisionCache decisionCache;
+
+    private volatile UpstreamHealth upstreamHealth;
+
+    private volatile UpstreamBalancer upstreamBalancer;
+
+    private final AtomicLong reloads = new AtomicLong();
+
+    private final AtomicLong reloadFailures = new AtomicLong();
+
+    private volatile long lastReloadMillis;
+
+    private volatile Consumer<String> hostRecorder;
+
+    private volatile List<String> warmUpUrls = Collections.emptyList();
+
+    private volatile AccessLog accessLog;
+
+    private volatile EvaluationExecutor evaluationExecutor;
+
+    private volatile boolean fallbackToLastDecision;
+
+    private final BoundedCache<String, List<ChainedProxy>> lastDecisions = new BoundedCache<>(MAX_LAST_DECISIONS);
+
+    private final BoundedCache<String, ParsedResult> parsedResults = new BoundedCache<>(MAX_PARSED_RESULTS);
+
+    private final BoundedCache<String, PacProxy> upstreams = new BoundedCache<>(MAX_UPSTREAMS);
+
+    private ExecutorService upstreamResolver;
 
-    private boolean usePACExtensions;
+    private volatile long upstreamRefreshNanos;
 
     /**
-     * Construct a new proxy manager using the given PAC location. This will initialize the Java Nashorn scripting
-     * engine with the PAC shim (javaPacShim.js) and the PAC file.
+     * Construct a new proxy manager using the given PAC location, which is either a file or an URL. This will initialize a pool of Nashorn scripting
+     * engines with the PAC shim (javaPacShim.js) and the PAC file, unless the PAC file may be compiled into native
+     * rules.
      * 
      * @param pacLocation
+     * @param enginePoolSize Number of engines which may evaluate the PAC file concurrently
+     * @param compileRules Whether to compile the PAC file into native rules if it only uses supported constructs
      * @throws IOException
      * @throws ScriptException
      */
-    public PacProxyManager(String pacLocation) throws IOException, ScriptException {
-        pacScript = SecureScriptEngine.newNashornEngine();
-        try (Reader shim = new InputStreamReader(PacProxyManager.class.getResourceAsStream("/javaPacShim.js"),
-                                                 StandardCharsets.UTF_8);
-             Reader pacReader = new FileReader(pacLocation)) {
-            pacScript.eval(shim);
-            pacScript.eval(pacReader);
-            usePACExtensions = pacScript.get("FindProxyForURLEx") != null;
+    public PacProxyManager(String pacLocation, int enginePoolSize, boolean compileRules) throws IOException,
+                                                                                         ScriptException {
+        this(pacLocation, enginePoolSize, compileRules, SecureScriptEngine.Backend.NASHORN);
+    }
+
+    /**
+     * Construct a new proxy manager evaluating the PAC file with the given script backend.
+     * 
+     * @param pacLocation
+     * @param enginePoolSize Number of engines which may evaluate the PAC file concurrently
+     * @param compileRules Whether to compile the PAC file into native rules if it only uses supported constructs
+     * @param backend Script engine to evaluate PAC files which are not compiled
+     * @throws IOException
+     * @throws ScriptException
+     */
+    public PacProxyManager(String pacLocation, int enginePoolSize, boolean compileRules,
+                           SecureScriptEngine.Backend backend) throws IOException, ScriptException {
+        this.pacLocation = pacLocation;
+        this.enginePoolSize = enginePoolSize;
+        this.compileRules = compileRules;
+        this.backend = backend;
+        pacSource = readPac(pacLocation);
+        replaceEvaluator(newEvaluator(pacSource, enginePoolSize, compileRules, backend));
+    }
+
+    /**
+     * Returns true if the given PAC location is an URL instead of a file.
+     * 
+     * @param pacLocation
+     */
+    public static boolean isURL(String pacLocation) {
+        return pacLocation.contains("://");
+    }
+
+    private static String readPac(String pacLocation) throws IOException {
+        if (!isURL(pacLocation)) {
+            return new String(Files.readAllBytes(Paths.get(pacLocation)), Charset.defaultCharset());
+        }
+        URLConnection connection = new URL(pacLocation).openConnection();
+        connection.setConnectTimeout(URL_TIMEOUT_MILLIS);
+        connection.setReadTimeout(URL_TIMEOUT_MILLIS);
+        try (InputStream in = connection.getInputStream()) {
+            return new String(ByteStreams.toByteArray(in), Charset.defaultCharset());
+        }
+    }
+
+    /**
+     * Reads the PAC file again and, if it changed, prepares a new evaluator in the calling thread. The new evaluator
+     * replaces the current one only after it was fully initialized and its script engines evaluated the warm-up
+     * URLs, if the PAC file cannot be loaded the current one is kept.
+     * 
+     * @return true if the PAC file changed and was loaded successfully
+     */
+    public synchronized boolean reload() {
+        long start = System.nanoTime();
+        try {
+            String newSource = readPac(pacLocation);
+            if (newSource.equals(pacSource)) {
+                LOG.debug("PAC file " + pacLocation + " did not change");
+                return false;
+            }
+            PacEvaluator newEvaluator = newEvaluator(newSource, enginePoolSize, compileRules, backend);
+            warmUp(newEvaluator);
+            replaceEvaluator(newEvaluator);
+            pacSource = newSource;
+            reloads.incrementAndGet();
+            lastReloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOG.info("Reloaded PAC file " + pacLocation + " in " + lastReloadMillis + " ms");
+            return true;
+        } catch (IOException | ScriptException | RuntimeException e) {
+            reloadFailures.incrementAndGet();
+            lastReloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOG.error("Could not reload PAC file " + pacLocation + ", keeping the previous one", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the location of the PAC file.
+     */
+    public String getPacLocation() {
+        return pacLocation;
+    }
+
+    /**
+     * Returns the number of successful reloads of a changed PAC file.
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Returns the number of failed reloads.
+     */
+    public long getReloadFailures() {
+        return reloadFailures.get();
+    }
+
+    /**
+     * Returns the duration of the last reload attempt in milliseconds.
+     */
+    public long getLastReloadMillis() {
+        return lastReloadMillis;
+    }
+
+    private static PacEvaluator newEvaluator(String pac, int enginePoolSize, boolean compileRules,
+                                             SecureScriptEngine.Backend backend) throws IOException, ScriptException {
+        String reason = "";
+        if (compileRules) {
+            try {
+                CompiledPac compiled = PacCompiler.compile(pac);
+                LOG.info("Evaluating PAC file as native rules (" + compiled.getSummary() + ")");
+                return compiled;
+            } catch (PacCompiler.UnsupportedPacException e) {
+                reason = ", compilation not possible: " + e.getMessage();
+            }
+        }
+        String shim = Resources.toString(PacProxyManager.class.getResource("/javaPacShim.js"), StandardCharsets.UTF_8);
+        PacEnginePool pool = new PacEnginePool(shim, pac, enginePoolSize, backend);
+        LOG.info("Evaluating PAC file with " + pool.size() + " " + backend.getOptionName() + " script engines" +
+                 reason);
+        return pool;
+    }
+
+    /**
+     * Evaluates the given URLs on every script engine of the current PAC evaluator, bypassing the decision cache, so
+     * no engine compiles the PAC file while serving requests. Returns the number of failed evaluations, which is 0 for
+     * PAC files compiled into native rules.
+     * 
+     * @param urls
+     * @param executor Runs the evaluations, one task per engine
+     * @throws InterruptedException
+     */
+    public int warmUpEngines(List<String> urls, ExecutorService executor) throws InterruptedException {
+        PacEvaluator current = evaluator;
+        return current instanceof PacEnginePool ? ((PacEnginePool) current).warmUp(urls, executor) : 0;
+    }
+
+    /**
+     * Sets the URLs evaluated on every script engine of a reloaded PAC file before it replaces the current one.
+     * 
+     * @param urls
+     */
+    public void setWarmUpUrls(List<String> urls) {
+        this.warmUpUrls = urls;
+    }
+
+    private void warmUp(PacEvaluator newEvaluator) {
+        List<String> urls = warmUpUrls;
+        if (urls.isEmpty() || !(newEvaluator instanceof PacEnginePool)) {
+            return;
+        }
+        PacEnginePool pool = (PacEnginePool) newEvaluator;
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(pool.size(), runnable -> {
+            Thread thread = new Thread(runnable, "PacProxy-WarmUp-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            int failures = pool.warmUp(urls, executor);
+            if (failures > 0) {
+                LOG.warn(failures + " evaluations of the reloaded PAC file failed during warm-up");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Enables caching of PAC decisions. The cache is invalidated whenever the PAC evaluator is replaced.
+     * 
+     * @param decisionCache The cache to use or null to evaluate the PAC file for each request
+     */
+    public void setDecisionCache(DecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    /**
+     * Returns the decision cache or null if caching is disabled.
+     */
+    public DecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Enables health tracking of upstream proxies, upstreams which are down are tried after all others.
+     * 
+     * @param upstreamHealth The tracker to use or null to always keep the order of the PAC result
+     */
+    public void setUpstreamHealth(UpstreamHealth upstreamHealth) {
+        this.upstreamHealth = upstreamHealth;
+    }
+
+    /**
+     * Returns the upstream health tracker or null if health tracking is disabled.
+     */
+    public UpstreamHealth getUpstreamHealth() {
+        return upstreamHealth;
+    }
+
+    /**
+     * Enables balancing of requests across the upstream proxies returned by the PAC file.
+     * 
+     * @param upstreamBalancer The balancer to use or null to keep the order of the PAC result
+     */
+    public void setUpstreamBalancer(UpstreamBalancer upstreamBalancer) {
+        this.upstreamBalancer = upstreamBalancer;
+    }
+
+    /**
+     * Returns the upstream balancer or null if balancing is disabled.
+     */
+    public UpstreamBalancer getUpstreamBalancer() {
+        return upstreamBalancer;
+    }
+
+    /**
+     * Evaluates the PAC file on the given executor. If the deadline of the executor is exceeded, the request is
+     * connected directly or using the last decision for its host.
+     * 
+     * @param evaluationExecutor The executor to use or null to evaluate the PAC file in the I/O thread
+     * @param fallbackToLastDecision Whether to use the last decision for the host instead of DIRECT if there is one
+     */
+    public void setEvaluationExecutor(EvaluationExecutor evaluationExecutor, boolean fallbackToLastDecision) {
+        this.fallbackToLastDecision = fallbackToLastDecision;
+        this.evaluationExecutor = evaluationExecutor;
+    }
+
+    /**
+     * Returns the evaluation executor or null if the PAC file is evaluated in the I/O thread.
+     */
+    public EvaluationExecutor getEvaluationExecutor() {
+        return evaluationExecutor;
+    }
+
+    /**
+     * Records each request with its decision in the given access log.
+     * 
+     * @param accessLog The access log or null to disable it
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Returns the access log or null if it is disabled.
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Passes the host of each request to the given recorder.
+     * 
+     * @param hostRecorder The recorder or null to stop recording
+     */
+    public void setHostRecorder(Consumer<String> hostRecorder) {
+        this.hostRecorder = hostRecorder;
+    }
+
+    private void replaceEvaluator(PacEvaluator newEvaluator) {
+        evaluator = newEvaluator;
+        if (decisionCache != null) {
+            decisionCache.invalidateAll();
         }
     }
 
@@ -78,66 +413,325 @@ public class PacProxyManager implements ChainedProxyManager {
      */
     @Override
     public void lookupChainedProxies(HttpRequest httpRequest, Queue<ChainedProxy> chainedProxies) {
-        Invocable invocable = (Invocable) pacScript;
+        AccessLog log = accessLog;
+        long start = log == null ? 0 : System.nanoTime();
+        String uri = httpRequest.getUri();
+        String host = hostOf(httpRequest, uri);
         try {
-            String uri = httpRequest.getUri();
-            String parsedURIHost = getHostFromURI(uri);
-            String host = parsedURIHost == null ? uri.split(":")[0] : parsedURIHost;
-            String result = (String) invocable.invokeFunction(usePACExtensions ? "FindProxyForURLEx"
-                                                                               : "FindProxyForURL",
-                                                              uri, host);
-            for (String proxyEntry : result.split(";")) {
-                ChainedProxy proxy = fromPACString(proxyEntry.trim());
-                if (proxy != null) {
-                    chainedProxies.add(proxy);
+            Consumer<String> recorder = hostRecorder;
+            if (recorder != null) {
+                recorder.accept(host);
+            }
+            DecisionCache cache = decisionCache;
+            String key = cache == null ? null : cache.keyFor(uri, host);
+            List<ChainedProxy> proxies = cache == null ? null : cache.get(key);
+            Boolean cacheHit = cache == null ? null : proxies != null;
+            if (proxies == null) {
+                EvaluationExecutor executor = evaluationExecutor;
+                if (executor == null) {
+                    proxies = decide(uri, host, cache, key);
+                } else {
+                    proxies = executor.evaluate(() -> decide(uri, host, cache, key));
+                    if (proxies == null) {
+                        PacMetrics.recordError("deadline");
+                        proxies = fallbackToLastDecision ? lastDecision(host) : DIRECT_ONLY;
+                    }
                 }
             }
+            UpstreamBalancer balancer = upstreamBalancer;
+            if (balancer != null) {
+                proxies = balancer.order(proxies, host);
+            }
+            PacMetrics.recordDecision(proxies.isEmpty() ? "NONE" : describe(proxies.get(0)));
+            UpstreamHealth health = upstreamHealth;
+            if (health == null) {
+                chainedProxies.addAll(proxies);
+            } else {
+                health.addInOrder(proxies, chainedProxies);
+            }
+            if (log != null) {
+                log.record(host, cacheHit, System.nanoTime() - start, chainedProxies.peek(), proxies);
+            }
         } catch (NoSuchMethodException | ScriptException e) {
+            PacMetrics.recordError("script");
             LOG.error("Error while executing FindProxyForURL", e);
+            recordFailure(log, host, start);
+        } catch (ExecutionException e) {
+            PacMetrics.recordError("script");
+            LOG.error("Error while executing FindProxyForURL", e.getCause());
+            recordFailure(log, host, start);
+        }
+    }
+
+    private void recordFailure(AccessLog log, String host, long start) {
+        if (log != null) {
+            log.record(host, decisionCache == null ? null : Boolean.FALSE, System.nanoTime() - start, null, null);
+        }
+    }
+
+    private List<ChainedProxy> lastDecision(String host) {
+        List<ChainedProxy> proxies = lastDecisions.get(host);
+        return proxies == null ? DIRECT_ONLY : proxies;
+    }
+
+    private List<ChainedProxy> decide(String uri, String host, DecisionCache cache, String key) throws ScriptException,
+                                                                                                NoSuchMethodException {
+        long generation = cache == null ? 0 : cache.getGeneration();
+        List<ChainedProxy> proxies = findChainedProxies(uri, host);
+        if (cache != null) {
+            cache.put(key, proxies, generation);
         }
+        if (fallbackToLastDecision) {
+            lastDecisions.put(host, proxies);
+        }
+        return proxies;
+    }
+
+    private static String describe(ChainedProxy proxy) {
+        return proxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION ? DIRECT : proxy.toString();
     }
 
-    private String getHostFromURI(String uri) {
+    private List<ChainedProxy> findChainedProxies(String uri, String host) throws ScriptException,
+                                                                            NoSuchMethodException {
+        DnsResolver resolver = PacFunctions.getResolver();
+        String result;
+        long start = PacMetrics.start();
+        resolver.beginEvaluation();
         try {
-            return new URI(uri).getHost();
-        } catch (URISyntaxException e) {
-            LOG.trace("Not an URI", e);
+            result = evaluator.findProxyForURL(uri, host);
+        } finally {
+            resolver.endEvaluation();
+            PacMetrics.recordEvaluation(start);
         }
-        return null;
+        if (result == null) {
+            PacMetrics.recordError("no_result");
+            LOG.error("FindProxyForURL returned no value for " + uri);
+            return Collections.emptyList();
+        }
+        ParsedResult parsed = parsedResults.computeIfAbsent(result, this::parseResult);
+        for (String error : parsed.errors) {
+            PacMetrics.recordError(error);
+        }
+        return parsed.proxies;
+    }
+
+    private ParsedResult parseResult(String result) {
+        List<ChainedProxy> proxies = new ArrayList<>();
+        List<String> errors = new ArrayList<>(0);
+        for (String proxyEntry : result.split(";")) {
+            ChainedProxy proxy = fromPACString(proxyEntry.trim(), errors);
+            if (proxy != null) {
+                proxies.add(proxy);
+            }
+        }
+        return new ParsedResult(Collections.unmodifiableList(proxies), errors.toArray(new String[errors.size()]));
     }
 
-    private ChainedProxy fromPACString(String input) {
+    private static String hostOf(HttpRequest httpRequest, String uri) {
+        String host = RequestTargets.host(uri);
+        if (host == null) {
+            // origin form, as received by a transparent proxy
+            String hostHeader = HttpHeaders.getHost(httpRequest, null);
+            host = hostHeader == null ? null : RequestTargets.host(hostHeader);
+        }
+        return host == null ? uri : host;
+    }
+
+    private ChainedProxy fromPACString(String input, List<String> errors) {
         if (input.isEmpty()) {
             return null;
         }
         if (DIRECT.equals(input)) {
             return ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION;
         }
-        if (input.length() > PROXY.length() && input.startsWith(PROXY)) {
-            // TODO IPv6
-            String[] proxy = input.substring(PROXY.length()).split(":");
-            if (proxy.length != 2) {
-                LOG.error("Malformed PROXY value returned: " + input);
-                return null;
+        boolean secure = input.startsWith(HTTPS);
+        if (secure || input.startsWith(PROXY)) {
+            String address = input.substring(secure ? HTTPS.length() : PROXY.length()).trim();
+            int separator = address.lastIndexOf(':');
+            String host = separator > 0 ? address.substring(0, separator) : "";
+            if (host.length() > 2 && host.charAt(0) == '[' && host.charAt(host.length() - 1) == ']') {
+                host = host.substring(1, host.length() - 1);
+            } else if (host.indexOf(':') >= 0) {
+                // IPv6 addresses must be enclosed in brackets to separate the port
+                host = "";
             }
-            return new PacProxy(new InetSocketAddress(proxy[0], Integer.parseInt(proxy[1])));
+            try {
+                if (!host.isEmpty()) {
+                    return upstreamFor(host, Integer.parseInt(address.substring(separator + 1)), secure);
+                }
+            } catch (IllegalArgumentException e) {
+                // handled below
+            }
+            errors.add("malformed_result");
+            LOG.error("Malformed proxy value returned: " + input);
+            return null;
+        }
+        if (input.startsWith(SOCKS)) {
+            // LittleProxy only chains to HTTP proxies, let the next entry of the result handle the request
+            errors.add("unsupported_result");
+            LOG.error("SOCKS proxies are not supported, skipping " + input);
+            return null;
         }
-        // TODO support SOCKS
+        errors.add("unsupported_result");
         LOG.error("Illegal value returned by FindProxyForURL: " + input);
         return null;
     }
 
-    private static class PacProxy extends ChainedProxyAdapter {
+    private PacProxy upstreamFor(String host, int port, boolean secure) {
+        String key = (secure ? HTTPS : PROXY) + host + ":" + port;
+        return upstreams.computeIfAbsent(key, k -> {
+            PacProxy upstream = new PacProxy(host, port, secure);
+            upstream.resolveInBackground();
+            return upstream;
+        });
+    }
+
+    /**
+     * Resolves the name of an upstream proxy again in the background when it is used and its address is older than
+     * the given interval. Until then, the address resolved when the upstream first appeared in a PAC result is used.
+     * 
+     * @param intervalSeconds
+     */
+    public void startUpstreamRefresh(int intervalSeconds) {
+        upstreamRefreshNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+    }
+
+    private synchronized ExecutorService upstreamResolver() {
+        if (upstreamResolver == null) {
+            upstreamResolver = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PacProxy-Upstream-DNS");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return upstreamResolver;
+    }
+
+    private static class ParsedResult {
 
-        private InetSocketAddress proxyAddress;
+        private final List<ChainedProxy> proxies;
 
-        public PacProxy(InetSocketAddress proxyAddress) {
-            this.proxyAddress = proxyAddress;
+        private final String[] errors;
+
+        public ParsedResult(List<ChainedProxy> proxies, String[] errors) {
+            this.proxies = proxies;
+            this.errors = errors;
+        }
+    }
+
+    private class PacProxy extends ChainedProxyAdapter {
+
+        private final String host;
+
+        private final int port;
+
+        private final boolean secure;
+
+        private final String description;
+
+        private volatile InetSocketAddress proxyAddress;
+
+        private volatile long resolvedAt;
+
+        private final AtomicBoolean resolving = new AtomicBoolean();
+
+        public PacProxy(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+            this.description = (secure ? HTTPS : PROXY) + (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" +
+                               port;
+            this.proxyAddress = InetSocketAddress.createUnresolved(host, port);
+        }
+
+        /**
+         * Resolves the host name on the resolver thread, unless a lookup is already pending.
+         */
+        public void resolveInBackground() {
+            if (resolving.compareAndSet(false, true)) {
+                upstreamResolver().execute(() -> {
+                    try {
+                        resolve();
+                    } finally {
+                        resolving.set(false);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Resolves the host name again, keeping the previous address if it cannot be resolved anymore.
+         */
+        public void resolve() {
+            InetSocketAddress resolved = new InetSocketAddress(host, port);
+            InetSocketAddress previous = proxyAddress;
+            if (resolved.isUnresolved() && !previous.isUnresolved()) {
+                LOG.warn("Could not resolve upstream proxy " + host + ", keeping " + previous.getAddress());
+            } else if (!resolved.equals(previous)) {
+                LOG.info("Upstream proxy " + host + " resolved to " + resolved.getAddress());
+                proxyAddress = resolved;
+            }
+            resolvedAt = System.nanoTime();
         }
 
         @Override
         public InetSocketAddress getChainedProxyAddress() {
-            return proxyAddress;
+            InetSocketAddress address = proxyAddress;
+            if (address.isUnresolved()) {
+                // the background lookup is still pending or failed, but the connection needs the address now
+                resolve();
+                return proxyAddress;
+            }
+            long interval = upstreamRefreshNanos;
+            if (interval > 0 && System.nanoTime() - resolvedAt > interval) {
+                resolveInBackground();
+            }
+            return address;
+        }
+
+        @Override
+        public boolean requiresEncryption() {
+            return secure;
+        }
+
+        @Override
+        public SSLEngine newSslEngine() {
+            try {
+                SSLEngine engine = SSLContext.getDefault().createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                return engine;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No TLS support for upstream proxy " + description, e);
+            }
+        }
+
+        @Override
+        public SSLEngine newSslEngine(String peerHost, int peerPort) {
+            return newSslEngine();
+        }
+
+        @Override
+        public void connectionSucceeded() {
+            UpstreamHealth health = upstreamHealth;
+            if (health != null) {
+                health.connectionSucceeded(proxyAddress);
+            }
+        }
+
+        @Override
+        public void connectionFailed(Throwable cause) {
+            UpstreamHealth health = upstreamHealth;
+            if (health != null) {
+                health.connectionFailed(proxyAddress, cause);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return description;
         }
     }
 
@@ -0,0 +1,119 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Triggers reloads of the PAC file of a {@link PacProxyManager}. Local files are watched for changes, URLs are polled
+ * periodically. Reloads run in a background thread, so requests are served by the previous PAC file in the meantime.
+ */
+public class PacReloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacReloader.class);
+
+    private static final long SETTLE_MILLIS = 500;
+
+    private final PacProxyManager manager;
+
+    private final int pollSeconds;
+
+    /**
+     * Creates a new reloader.
+     * 
+     * @param manager
+     * @param pollSeconds Interval for polling URLs
+     */
+    public PacReloader(PacProxyManager manager, int pollSeconds) {
+        this.manager = manager;
+        this.pollSeconds = pollSeconds;
+    }
+
+    /**
+     * Starts watching or polling the PAC location.
+     * 
+     * @throws IOException if the PAC file cannot be watched
+     */
+    public void start() throws IOException {
+        String location = manager.getPacLocation();
+        if (PacProxyManager.isURL(location)) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PacProxy-Reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(manager::reload, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+            LOG.info("Polling PAC file " + location + " every " + pollSeconds + " seconds");
+        } else {
+            Path file = Paths.get(location).toAbsolutePath();
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                      StandardWatchEventKinds.ENTRY_MODIFY);
+            Thread thread = new Thread(() -> watch(watchService, file.getFileName()), "PacProxy-Reload");
+            thread.setDaemon(true);
+            thread.start();
+            LOG.info("Watching PAC file " + file + " for changes");
+        }
+    }
+
+    private void watch(WatchService watchService, Path fileName) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = containsFile(key, fileName);
+                key.reset();
+                if (changed) {
+                    // editors usually write files in several steps, wait until no more events arrive
+                    while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                    manager.reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            LOG.debug("Stopped watching PAC file", e);
+        }
+    }
+
+    private boolean containsFile(WatchKey key, Path fileName) {
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                found = true;
+            }
+        }
+        return found;
+    }
+}
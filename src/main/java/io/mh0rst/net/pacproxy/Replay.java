@@ -0,0 +1,234 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Replays the URLs of an access log through a {@link PacProxyManager} without starting the proxy, to measure the
+ * capacity of a PAC file and to compare its decisions with those of another PAC file.
+ */
+public class Replay {
+
+    private static final int MAX_LISTED_DIFFERENCES = 20;
+
+    private final int threads;
+
+    private final PrintStream out;
+
+    /**
+     * Creates a new replay.
+     * 
+     * @param threads Number of threads evaluating the URLs concurrently
+     * @param out Stream for the report
+     */
+    public Replay(int threads, PrintStream out) {
+        this.threads = threads;
+        this.out = out;
+    }
+
+    /**
+     * Reads the URLs of an access log, the first field of each line. Fields without a scheme are taken as CONNECT
+     * targets (host:port), lines starting with # are ignored.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public static List<String> readUrls(Path file) throws IOException {
+        List<String> urls = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                urls.add(line.split("\\s+", 2)[0]);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Returns a name service answering from a hosts file instead of DNS. Each line contains an IP address and host
+     * names (as in /etc/hosts) or a host name and an IP address. All other hosts are unresolvable.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public static DnsResolver.NameService hostsFile(Path file) throws IOException {
+        Map<String, InetAddress[]> hosts = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            String[] fields = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+            int addressField = IpAddresses.parse(fields[0]) != null ? 0 : 1;
+            byte[] address = IpAddresses.parse(fields[addressField]);
+            if (address == null) {
+                throw new IOException("No IP address in line of " + file + ": " + line);
+            }
+            for (int i = 0; i < fields.length; i++) {
+                if (i != addressField) {
+                    InetAddress[] known = hosts.getOrDefault(fields[i], new InetAddress[0]);
+                    InetAddress[] updated = Arrays.copyOf(known, known.length + 1);
+                    updated[known.length] = InetAddress.getByAddress(fields[i], address);
+                    hosts.put(fields[i], updated);
+                }
+            }
+        }
+        return host -> {
+            InetAddress[] addresses = hosts.get(host);
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        };
+    }
+
+    /**
+     * Evaluates all URLs with the given manager and reports throughput, latency and the decisions. Each run starts
+     * with an empty DNS cache, so a second run is not faster only because the first one resolved its hosts.
+     * 
+     * @param manager
+     * @param urls
+     * @return The decision for each URL
+     */
+    public String[] run(PacProxyManager manager, List<String> urls) {
+        List<HttpRequest> requests = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            HttpMethod method = url.contains("://") ? HttpMethod.GET : HttpMethod.CONNECT;
+            requests.add(new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, url));
+        }
+        String[] decisions = new String[requests.size()];
+        long[] latencies = new long[requests.size()];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        PacFunctions.getResolver().clear();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                Queue<ChainedProxy> proxies = new ArrayDeque<>();
+                for (int index = next.getAndIncrement(); index < decisions.length; index = next.getAndIncrement()) {
+                    long lookupStart = System.nanoTime();
+                    manager.lookupChainedProxies(requests.get(index), proxies);
+                    latencies[index] = System.nanoTime() - lookupStart;
+                    decisions[index] = describe(proxies);
+                    proxies.clear();
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        out.println("PAC file: " + manager.getPacLocation());
+        out.printf("URLs: %d in %.3f s with %d threads, %.0f lookups/s%n", decisions.length, elapsed / 1e9, threads,
+                   decisions.length / (elapsed / 1e9));
+        Arrays.sort(latencies);
+        out.printf("Latency (us): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n", percentile(latencies, 0.5),
+                   percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                   percentile(latencies, 1));
+        Map<String, Integer> distribution = new TreeMap<>();
+        for (String decision : decisions) {
+            distribution.merge(decision, 1, Integer::sum);
+        }
+        out.println("Decisions:");
+        distribution.entrySet()
+                    .stream()
+                    .sorted((a, b) -> b.getValue() - a.getValue())
+                    .forEach(entry -> out.printf("  %7d %5.1f%% %s%n", entry.getValue(),
+                                                 100.0 * entry.getValue() / decisions.length, entry.getKey()));
+        out.println();
+        return decisions;
+    }
+
+    /**
+     * Reports the URLs which got different decisions.
+     * 
+     * @param otherLocation Location of the PAC file which made the other decisions
+     * @param urls
+     * @param decisions
+     * @param otherDecisions
+     */
+    public void diff(String otherLocation, List<String> urls, String[] decisions, String[] otherDecisions) {
+        out.println("Differences to " + otherLocation + ":");
+        int differences = 0;
+        for (int i = 0; i < decisions.length; i++) {
+            if (!decisions[i].equals(otherDecisions[i])) {
+                if (differences++ < MAX_LISTED_DIFFERENCES) {
+                    out.println("  " + urls.get(i) + ": " + decisions[i] + " -> " + otherDecisions[i]);
+                }
+            }
+        }
+        if (differences > MAX_LISTED_DIFFERENCES) {
+            out.println("  ...");
+        }
+        out.printf("Different decisions: %d of %d URLs (%.2f%%)%n", differences, decisions.length,
+                   decisions.length == 0 ? 0 : 100.0 * differences / decisions.length);
+    }
+
+    private static String describe(Queue<ChainedProxy> proxies) {
+        if (proxies.isEmpty()) {
+            return "NONE";
+        }
+        StringBuilder decision = new StringBuilder();
+        for (ChainedProxy proxy : proxies) {
+            if (decision.length() > 0) {
+                decision.append("; ");
+            }
+            decision.append(proxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION ? "DIRECT" : proxy.toString());
+        }
+        return decision.toString();
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000.0;
+    }
+}
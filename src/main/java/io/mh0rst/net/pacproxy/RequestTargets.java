@@ -0,0 +1,66 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+/**
+ * Extracts the host of HTTP request targets without creating URI objects, exceptions or intermediate arrays.
+ */
+public final class RequestTargets {
+
+    private RequestTargets() {
+    }
+
+    /**
+     * Returns the host of the given request target, null if it has none. Supported are the absolute form
+     * (http://host:port/path) and the authority form (host:port) used by CONNECT, both with IPv6 literals in brackets,
+     * which are returned without the brackets. The origin form (/path) and the asterisk form (*) have no host.
+     * 
+     * @param target
+     */
+    public static String host(String target) {
+        if (target == null || target.isEmpty() || target.charAt(0) == '/' || "*".equals(target)) {
+            return null;
+        }
+        int start = 0;
+        int end = target.length();
+        int schemeEnd = target.indexOf("://");
+        if (schemeEnd != -1) {
+            start = schemeEnd + 3;
+            for (int i = start; i < end; i++) {
+                char c = target.charAt(i);
+                if (c == '/' || c == '?' || c == '#') {
+                    end = i;
+                    break;
+                }
+            }
+            int userInfoEnd = target.lastIndexOf('@', end - 1);
+            if (userInfoEnd >= start) {
+                start = userInfoEnd + 1;
+            }
+        }
+        if (start < end && target.charAt(start) == '[') {
+            int close = target.indexOf(']', start);
+            return close == -1 || close >= end || close == start + 1 ? null : target.substring(start + 1, close);
+        }
+        int port = target.indexOf(':', start);
+        if (port != -1 && port < end) {
+            end = port;
+        }
+        return start < end ? target.substring(start, end) : null;
+    }
+}
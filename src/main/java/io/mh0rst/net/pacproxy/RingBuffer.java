@@ -0,0 +1,80 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer. Producers never block, if the buffer is full the
+ * element is rejected.
+ */
+final class RingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a new buffer.
+     * 
+     * @param minimumCapacity Rounded up to the next power of two
+     */
+    RingBuffer(int minimumCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minimumCapacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds the given element, returns false if the buffer is full.
+     * 
+     * @param element
+     */
+    boolean offer(T element) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head.get() > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+        slots.lazySet((int) position & mask, element);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element, returns null if there is none. Must only be called by the consumer thread.
+     */
+    T poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        T element = slots.get(index);
+        if (element == null) {
+            // empty, or the producer of this slot has not stored its element yet
+            return null;
+        }
+        slots.lazySet(index, null);
+        head.lazySet(position + 1);
+        return element;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes messages of the PAC log() function to the log in a background thread. At most 100 messages per second are
+ * kept, the others are only counted, so a chatty PAC file cannot slow down the evaluation.
+ */
+final class ScriptLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacFunctions.class);
+
+    private static final int MAX_PER_SECOND = 100;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final RingBuffer<String> MESSAGES = new RingBuffer<>(1024);
+
+    private static final AtomicLong WINDOW = new AtomicLong();
+
+    private static final AtomicInteger WINDOW_COUNT = new AtomicInteger();
+
+    private static final AtomicLong SUPPRESSED = new AtomicLong();
+
+    static {
+        Thread thread = new Thread(ScriptLog::write, "PacProxy-Script-Log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private ScriptLog() {
+    }
+
+    /**
+     * Queues the given message unless the rate limit is exceeded or the queue is full.
+     * 
+     * @param message
+     */
+    static void log(String message) {
+        long window = System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+        long current = WINDOW.get();
+        if (current != window && WINDOW.compareAndSet(current, window)) {
+            WINDOW_COUNT.set(0);
+        }
+        if (WINDOW_COUNT.incrementAndGet() > MAX_PER_SECOND || !MESSAGES.offer(message)) {
+            SUPPRESSED.incrementAndGet();
+        }
+    }
+
+    private static void write() {
+        while (true) {
+            String message = MESSAGES.poll();
+            if (message != null) {
+                LOG.info(message);
+                continue;
+            }
+            long suppressed = SUPPRESSED.getAndSet(0);
+            if (suppressed > 0) {
+                LOG.warn("Suppressed " + suppressed + " log messages of the PAC file");
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+}
@@ -17,34 +17,426 @@
  */
 package io.mh0rst.net.pacproxy;
 
+import java.lang.reflect.Executable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
 import javax.script.Bindings;
+import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
-
-import jdk.nashorn.api.scripting.ClassFilter;
-import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
 
 /**
- * Provides a nashorn scripting engine only exposing the PacFunctions class.
+ * Provides scripting engines only exposing the PacFunctions class. The engines are loaded by reflection, so PacProxy
+ * compiles and runs on JDKs without the built-in Nashorn as long as one of the backends is on the class path.
+ * <p>
+ * Optional compile-time dependencies would not work here: the class filter of Nashorn is in jdk.nashorn.api.scripting
+ * on Java 8 to 14 but in org.openjdk.nashorn.api.scripting for the standalone Nashorn, which needs Java 11 while
+ * PacProxy is built for Java 8, so no single build can link against both. The backends are runtime dependencies of
+ * their profiles only, so referring to the GraalJS or Rhino classes directly would make this class fail to load
+ * whenever that backend is missing. The filters are therefore created as dynamic proxies of the interfaces found at
+ * runtime.
  */
-@SuppressWarnings("restriction")
 public class SecureScriptEngine {
 
-    static ScriptEngine newNashornEngine() {
-        NashornScriptEngineFactory factory = new NashornScriptEngineFactory();
-        ScriptEngine scriptEngine = factory.getScriptEngine(new PacClassFilter());
-        Bindings bindings = scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
-        bindings.remove("exit");
-        bindings.remove("quit");
-        return scriptEngine;
+    /**
+     * The supported script engines.
+     */
+    public enum Backend {
+        /**
+         * Nashorn, built into Java 8 to 14 or the standalone org.openjdk.nashorn for Java 11 and later.
+         */
+        NASHORN("nashorn"),
+        /**
+         * GraalJS via its JSR-223 script engine.
+         */
+        GRAALJS("graaljs"),
+        /**
+         * Mozilla Rhino via its JSR-223 script engine.
+         */
+        RHINO("rhino");
+
+        private final String optionName;
+
+        private Backend(String optionName) {
+            this.optionName = optionName;
+        }
+
+        /**
+         * Returns the name of the backend on the command line.
+         */
+        public String getOptionName() {
+            return optionName;
+        }
+
+        /**
+         * Returns the backend with the given name on the command line or null if there is none.
+         * 
+         * @param optionName
+         */
+        public static Backend forOptionName(String optionName) {
+            for (Backend backend : values()) {
+                if (backend.optionName.equals(optionName)) {
+                    return backend;
+                }
+            }
+            return null;
+        }
     }
 
-    private static class PacClassFilter implements ClassFilter {
+    private static final String[] NASHORN_PACKAGES = { "org.openjdk.nashorn.api.scripting.",
+                                                       "jdk.nashorn.api.scripting." };
 
-        @Override
-        public boolean exposeToScripts(String clazz) {
-            return PacFunctions.class.getName().equals(clazz);
+    private static final Set<String> RHINO_VALUE_CLASSES = new HashSet<>(Arrays.asList("java.lang.String",
+                                                                                        "java.lang.Boolean",
+                                                                                        "java.lang.Integer"));
+
+    private static final String RHINO_UNDEFINED = "org.mozilla.javascript.Undefined";
+
+    private static RhinoContexts rhinoContexts;
+
+    /**
+     * Probe evaluated in every new engine, it must not reach java.lang.System by any of the ways the backends offer.
+     */
+    private static final String SANDBOX_PROBE = String.join("\n", "(function() {",
+                                                            "  try {",
+                                                            "    if (Java.type('java.lang.System')) return true;",
+                                                            "  } catch (e) {}",
+                                                            "  try {",
+                                                            "    var system = Packages.java.lang.System;",
+                                                            "    if (typeof system.exit === 'function') return true;",
+                                                            "  } catch (e) {}",
+                                                            "  try {",
+                                                            "    if (typeof java.lang.System.exit === 'function') {",
+                                                            "      return true;",
+                                                            "    }",
+                                                            "  } catch (e) {}",
+                                                            "  try {",
+                                                            "    var pac = typeof Java !== 'undefined' && Java.type",
+                                                            "        ? Java.type('" + PacFunctions.class.getName() + "')",
+                                                            "        : Packages." + PacFunctions.class.getName() + ";",
+                                                            "    var loader = pac['class'].getClassLoader();",
+                                                            "    if (loader.loadClass('java.lang.System')) return true;",
+                                                            "  } catch (e) {}",
+                                                            "  return false;",
+                                                            "})()");
+
+    /**
+     * Probe evaluated in every new engine, string results of the PAC functions must be JavaScript strings.
+     */
+    private static final String VALUE_PROBE = String.join("\n", "(function() {",
+                                                          "  var pac = typeof Java !== 'undefined' && Java.type",
+                                                          "      ? Java.type('" + PacFunctions.class.getName() + "')",
+                                                          "      : Object.create(Packages." + PacFunctions.class.getName()
+                                                                                   + ");",
+                                                          "  var sorted = pac.sortIpAddressList('10.0.0.2;10.0.0.1');",
+                                                          "  return typeof sorted === 'string'",
+                                                          "      && sorted === '10.0.0.1;10.0.0.2'",
+                                                          "      && sorted.split(';')[0].substring(0, 3) === '10.';",
+                                                          "})()");
+
+    /**
+     * Creates the given number of engines of the given backend for one pool. GraalJS engines share one polyglot engine
+     * and thereby the parsed and compiled code.
+     * 
+     * @param backend
+     * @param count
+     * @throws ScriptException if the backend is not available or does not restrict the script to the PAC functions
+     */
+    static List<ScriptEngine> newEngines(Backend backend, int count) throws ScriptException {
+        List<ScriptEngine> engines = new ArrayList<>(count);
+        GraalJs graalJs = null;
+        for (int i = 0; i < count; i++) {
+            ScriptEngine engine;
+            switch (backend) {
+            case NASHORN:
+                engine = newNashornEngine();
+                break;
+            case GRAALJS:
+                if (graalJs == null) {
+                    graalJs = GraalJs.create();
+                }
+                engine = graalJs.newEngine();
+                break;
+            case RHINO:
+                engine = newRhinoEngine();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown script backend " + backend);
+            }
+            checkSandbox(engine, backend);
+            checkValues(engine, backend);
+            engines.add(engine);
         }
+        return engines;
+    }
 
+    /**
+     * Refuses engines which give scripts access to other Java classes than the PAC functions, e.g. because a backend
+     * ignores the class filter.
+     */
+    private static void checkSandbox(ScriptEngine engine, Backend backend) throws ScriptException {
+        if (!Boolean.FALSE.equals(engine.eval(SANDBOX_PROBE))) {
+            throw new ScriptException("The " + backend.getOptionName() + " script engine does not restrict the PAC "
+                                      + "file to the PAC functions, refusing to use it");
+        }
+    }
+
+    /**
+     * Refuses engines which hand Java objects instead of JavaScript values of the PAC functions to the script, which
+     * breaks comparisons and string methods in the PAC file.
+     */
+    private static void checkValues(ScriptEngine engine, Backend backend) throws ScriptException {
+        if (!Boolean.TRUE.equals(engine.eval(VALUE_PROBE))) {
+            throw new ScriptException("The " + backend.getOptionName() + " script engine does not convert the results "
+                                      + "of the PAC functions to JavaScript values, refusing to use it");
+        }
+    }
+
+    /**
+     * Returns whether the given result of a function is JavaScript's undefined, for which the other backends return
+     * null. Rhino returns its Undefined instance or, when converting it to Object, the string "undefined".
+     * 
+     * @param value
+     * @param backend
+     */
+    static boolean isUndefined(Object value, Backend backend) {
+        return backend == Backend.RHINO && value != null &&
+               (RHINO_UNDEFINED.equals(value.getClass().getName()) || "undefined".equals(value));
+    }
+
+    private static boolean isExposed(String className) {
+        return PacFunctions.class.getName().equals(className);
+    }
+
+    private static ScriptEngine newNashornEngine() throws ScriptException {
+        for (String nashornPackage : NASHORN_PACKAGES) {
+            Class<?> filterClass;
+            Method getScriptEngine;
+            try {
+                Class<?> factoryClass = Class.forName(nashornPackage + "NashornScriptEngineFactory");
+                filterClass = Class.forName(nashornPackage + "ClassFilter");
+                getScriptEngine = factoryClass.getMethod("getScriptEngine", filterClass);
+            } catch (ReflectiveOperationException e) {
+                continue;
+            }
+            Object filter = Proxy.newProxyInstance(SecureScriptEngine.class.getClassLoader(),
+                                                   new Class<?>[] { filterClass },
+                                                   (proxy, method, args) -> filter(proxy, method, args, false));
+            ScriptEngine scriptEngine = (ScriptEngine) invoke(getScriptEngine,
+                                                              newInstance(getScriptEngine.getDeclaringClass()),
+                                                              filter);
+            Bindings bindings = scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
+            bindings.remove("exit");
+            bindings.remove("quit");
+            return scriptEngine;
+        }
+        throw new ScriptException("Nashorn is not available, use Java 8 or add org.openjdk.nashorn:nashorn-core");
+    }
+
+    private static ScriptEngine newRhinoEngine() throws ScriptException {
+        ScriptEngine scriptEngine = new ScriptEngineManager().getEngineByName("rhino");
+        if (scriptEngine == null) {
+            throw new ScriptException("Rhino is not available, add org.mozilla:rhino-engine");
+        }
+        RhinoContexts contexts = installRhinoShutter();
+        return (ScriptEngine) Proxy.newProxyInstance(SecureScriptEngine.class.getClassLoader(),
+                                                     new Class<?>[] { ScriptEngine.class, Invocable.class },
+                                                     (proxy, method, args) -> contexts.call(scriptEngine, method,
+                                                                                            args));
+    }
+
+    /**
+     * Rhino has no class filter per engine, a ClassShutter is set on every context created by the global context
+     * factory instead. The JSR-223 engine creates its contexts with a private factory which does not notify
+     * listeners, but it reuses a context already entered by the current thread. The contexts also stop wrapping
+     * Strings returned by the PAC functions into Java objects, so the script gets JavaScript strings.
+     */
+    private static synchronized RhinoContexts installRhinoShutter() throws ScriptException {
+        if (rhinoContexts != null) {
+            return rhinoContexts;
+        }
+        try {
+            Class<?> contextClass = Class.forName("org.mozilla.javascript.Context");
+            Class<?> factoryClass = Class.forName("org.mozilla.javascript.ContextFactory");
+            Class<?> listenerClass = Class.forName("org.mozilla.javascript.ContextFactory$Listener");
+            Class<?> shutterClass = Class.forName("org.mozilla.javascript.ClassShutter");
+            Class<?> wrapFactoryClass = Class.forName("org.mozilla.javascript.WrapFactory");
+            Method setClassShutter = contextClass.getMethod("setClassShutter", shutterClass);
+            Method getWrapFactory = contextClass.getMethod("getWrapFactory");
+            Method setJavaPrimitiveWrap = wrapFactoryClass.getMethod("setJavaPrimitiveWrap", boolean.class);
+            Object shutter = Proxy.newProxyInstance(SecureScriptEngine.class.getClassLoader(),
+                                                    new Class<?>[] { shutterClass },
+                                                    (proxy, method, args) -> filter(proxy, method, args, true));
+            Object listener = Proxy.newProxyInstance(SecureScriptEngine.class.getClassLoader(),
+                                                     new Class<?>[] { listenerClass }, (proxy, method, args) -> {
+                                                         if ("contextCreated".equals(method.getName())) {
+                                                             setClassShutter.invoke(args[0], shutter);
+                                                             setJavaPrimitiveWrap.invoke(getWrapFactory.invoke(args[0]),
+                                                                                         false);
+                                                             return null;
+                                                         }
+                                                         return objectMethod(proxy, method, args);
+                                                     });
+            Object globalFactory = factoryClass.getMethod("getGlobal").invoke(null);
+            factoryClass.getMethod("addListener", listenerClass).invoke(globalFactory, listener);
+            rhinoContexts = new RhinoContexts(globalFactory, factoryClass.getMethod("enterContext"),
+                                              contextClass.getMethod("exit"));
+            return rhinoContexts;
+        } catch (ReflectiveOperationException e) {
+            throw new ScriptException("Could not restrict Rhino to the PAC functions: " + e);
+        }
+    }
+
+    /**
+     * Implements the single method of ClassFilter and ClassShutter, which both decide by class name. Rhino also checks
+     * the classes of values returned by Java methods, so it needs to see the types returned by the PAC functions.
+     */
+    private static Object filter(Object proxy, Method method, Object[] args, boolean allowValueClasses) {
+        if (args != null && args.length == 1 && args[0] instanceof String) {
+            String className = (String) args[0];
+            return isExposed(className) || allowValueClasses && RHINO_VALUE_CLASSES.contains(className);
+        }
+        return objectMethod(proxy, method, args);
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "equals":
+            return proxy == args[0];
+        case "toString":
+            return "PacClassFilter";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Creates GraalJS engines whose contexts only allow looking up the PacFunctions class and only calling its public
+     * static methods. Everything else of the host, including the members of Class and ClassLoader, is denied.
+     */
+    private static class GraalJs {
+
+        private final Method create;
+
+        private final Object polyglotEngine;
+
+        private final Object contextBuilder;
+
+        private GraalJs(Method create, Object polyglotEngine, Object contextBuilder) {
+            this.create = create;
+            this.polyglotEngine = polyglotEngine;
+            this.contextBuilder = contextBuilder;
+        }
+
+        static GraalJs create() throws ScriptException {
+            Class<?> engineClass;
+            Class<?> scriptEngineClass;
+            try {
+                engineClass = Class.forName("org.graalvm.polyglot.Engine");
+                scriptEngineClass = Class.forName("com.oracle.truffle.js.scriptengine.GraalJSScriptEngine");
+            } catch (ClassNotFoundException e) {
+                throw new ScriptException("GraalJS is not available, add org.graalvm.js:js-scriptengine");
+            }
+            try {
+                Class<?> hostAccessClass = Class.forName("org.graalvm.polyglot.HostAccess");
+                Class<?> hostAccessBuilderClass = Class.forName("org.graalvm.polyglot.HostAccess$Builder");
+                Class<?> contextClass = Class.forName("org.graalvm.polyglot.Context");
+                Class<?> contextBuilderClass = Class.forName("org.graalvm.polyglot.Context$Builder");
+                Object hostAccessBuilder = hostAccessClass.getMethod("newBuilder").invoke(null);
+                Method allowAccess = hostAccessBuilderClass.getMethod("allowAccess", Executable.class);
+                for (Method function : PacFunctions.class.getMethods()) {
+                    if (function.getDeclaringClass() == PacFunctions.class
+                        && Modifier.isStatic(function.getModifiers())) {
+                        allowAccess.invoke(hostAccessBuilder, function);
+                    }
+                }
+                Method denyAccess = hostAccessBuilderClass.getMethod("denyAccess", Class.class);
+                denyAccess.invoke(hostAccessBuilder, Class.class);
+                denyAccess.invoke(hostAccessBuilder, ClassLoader.class);
+                Object hostAccess = hostAccessBuilderClass.getMethod("build").invoke(hostAccessBuilder);
+                Object polyglotEngine = engineClass.getMethod("create").invoke(null);
+                Object contextBuilder = contextClass.getMethod("newBuilder", String[].class)
+                                                    .invoke(null, (Object) new String[] { "js" });
+                contextBuilderClass.getMethod("allowHostAccess", hostAccessClass).invoke(contextBuilder, hostAccess);
+                contextBuilderClass.getMethod("allowHostClassLookup", Predicate.class)
+                                   .invoke(contextBuilder, (Predicate<String>) SecureScriptEngine::isExposed);
+                contextBuilderClass.getMethod("engine", engineClass).invoke(contextBuilder, polyglotEngine);
+                return new GraalJs(scriptEngineClass.getMethod("create", engineClass, contextBuilderClass),
+                                   polyglotEngine, contextBuilder);
+            } catch (InvocationTargetException e) {
+                throw new ScriptException("Could not restrict GraalJS to the PAC functions: " + e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new ScriptException("Could not restrict GraalJS to the PAC functions: " + e);
+            }
+        }
+
+        ScriptEngine newEngine() throws ScriptException {
+            return (ScriptEngine) invoke(create, null, polyglotEngine, contextBuilder);
+        }
+    }
+
+    /**
+     * Enters a context of the global Rhino context factory, which has the ClassShutter, around every evaluation.
+     */
+    private static class RhinoContexts {
+
+        private final Object globalFactory;
+
+        private final Method enterContext;
+
+        private final Method exit;
+
+        RhinoContexts(Object globalFactory, Method enterContext, Method exit) {
+            this.globalFactory = globalFactory;
+            this.enterContext = enterContext;
+            this.exit = exit;
+        }
+
+        Object call(ScriptEngine scriptEngine, Method method, Object[] args) throws Throwable {
+            boolean evaluates = method.getName().startsWith("eval") || method.getName().startsWith("invoke");
+            if (evaluates) {
+                enterContext.invoke(globalFactory);
+            }
+            try {
+                return method.invoke(scriptEngine, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (evaluates) {
+                    exit.invoke(null);
+                }
+            }
+        }
+    }
+
+    private static Object newInstance(Class<?> type) throws ScriptException {
+        try {
+            return type.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new ScriptException("Could not create " + type.getName() + ": " + e);
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws ScriptException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw new ScriptException("Could not create script engine: " + e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new ScriptException("Could not create script engine: " + e);
+        }
     }
 }
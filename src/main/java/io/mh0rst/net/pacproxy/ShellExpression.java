@@ -0,0 +1,158 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compiled shell expression as used by the PAC function shExpMatch, supporting the wildcards * (any amount of
+ * arbitrary characters) and ? (exactly one arbitrary character). Common shapes like "*.example.com" are matched by a
+ * single String comparison, all others by a backtracking matcher which does not allocate.
+ */
+public final class ShellExpression {
+
+    private static final int MAX_CACHED = 4096;
+
+    private static final ConcurrentMap<String, ShellExpression> CACHE = new ConcurrentHashMap<>();
+
+    private enum Shape {
+        EXACT, PREFIX, SUFFIX, CONTAINS, ANY, GLOB
+    }
+
+    private final String expression;
+
+    private final Shape shape;
+
+    private final String literal;
+
+    private ShellExpression(String expression) {
+        this.expression = expression;
+        int stars = 0;
+        boolean questionMark = false;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '*') {
+                stars++;
+            } else if (c == '?') {
+                questionMark = true;
+            }
+        }
+        int length = expression.length();
+        boolean leadingStar = length > 0 && expression.charAt(0) == '*';
+        boolean trailingStar = length > 0 && expression.charAt(length - 1) == '*';
+        if (questionMark) {
+            shape = Shape.GLOB;
+            literal = null;
+        } else if (stars == 0) {
+            shape = Shape.EXACT;
+            literal = expression;
+        } else if (stars == length) {
+            shape = Shape.ANY;
+            literal = null;
+        } else if (stars == 1 && trailingStar) {
+            shape = Shape.PREFIX;
+            literal = expression.substring(0, length - 1);
+        } else if (stars == 1 && leadingStar) {
+            shape = Shape.SUFFIX;
+            literal = expression.substring(1);
+        } else if (stars == 2 && leadingStar && trailingStar) {
+            shape = Shape.CONTAINS;
+            literal = expression.substring(1, length - 1);
+        } else {
+            shape = Shape.GLOB;
+            literal = null;
+        }
+    }
+
+    /**
+     * Returns the compiled form of the given shell expression, reusing previously compiled expressions.
+     * 
+     * @param expression
+     */
+    public static ShellExpression compile(String expression) {
+        ShellExpression compiled = CACHE.get(expression);
+        if (compiled == null) {
+            compiled = new ShellExpression(expression);
+            if (CACHE.size() >= MAX_CACHED) {
+                CACHE.clear();
+            }
+            CACHE.put(expression, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns true if the given string matches this expression.
+     * 
+     * @param str
+     */
+    public boolean matches(String str) {
+        switch (shape) {
+        case EXACT:
+            return literal.equals(str);
+        case PREFIX:
+            return str.startsWith(literal);
+        case SUFFIX:
+            return str.endsWith(literal);
+        case CONTAINS:
+            return str.contains(literal);
+        case ANY:
+            return true;
+        default:
+            return globMatches(str);
+        }
+    }
+
+    private boolean globMatches(String str) {
+        int s = 0;
+        int e = 0;
+        int starE = -1;
+        int starS = 0;
+        while (s < str.length()) {
+            if (e < expression.length()) {
+                char c = expression.charAt(e);
+                if (c == '*') {
+                    starE = e++;
+                    starS = s;
+                    continue;
+                }
+                if (c == '?' || c == str.charAt(s)) {
+                    e++;
+                    s++;
+                    continue;
+                }
+            }
+            if (starE == -1) {
+                return false;
+            }
+            // let the last star consume one more character and retry
+            e = starE + 1;
+            s = ++starS;
+        }
+        while (e < expression.length() && expression.charAt(e) == '*') {
+            e++;
+        }
+        return e == expression.length();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -18,13 +18,75 @@
 package io.mh0rst.net.pacproxy;
 
 /**
- * Detects if an address is part of the subnet represented by this class.
+ * Detects if an address is part of the subnet represented by this class. Instances are immutable.
  */
 public class SubnetPattern {
 
-    int[] subnetMask;
+    private static final int MAX_CACHED = 4096;
 
-    int[] mask;
+    private static final BoundedCache<String, SubnetPattern> MASK_CACHE = new BoundedCache<>(MAX_CACHED);
+
+    private static final BoundedCache<String, SubnetPattern> PREFIX_CACHE = new BoundedCache<>(MAX_CACHED);
+
+    private final int[] subnetMask;
+
+    private final int[] mask;
+
+    /**
+     * Returns the subnet for the given pattern and mask literals, e.g. 10.1.2.0 and 255.255.255.0, or null if they are
+     * not IP addresses of the same family. Parsed subnets are cached.
+     * 
+     * @param pattern
+     * @param mask
+     */
+    public static SubnetPattern forMask(String pattern, String mask) {
+        String key = pattern + ' ' + mask;
+        SubnetPattern subnet = MASK_CACHE.get(key);
+        if (subnet == null) {
+            byte[] patternBytes = IpAddresses.parse(pattern);
+            byte[] maskBytes = IpAddresses.parse(mask);
+            if (patternBytes == null || maskBytes == null || patternBytes.length != maskBytes.length) {
+                return null;
+            }
+            subnet = new SubnetPattern(patternBytes, maskBytes);
+            MASK_CACHE.put(key, subnet);
+        }
+        return subnet;
+    }
+
+    /**
+     * Returns the subnet for the given prefix in CIDR notation, e.g. 10.1.2.0/24 or fe80::/10, or null if it is
+     * malformed. Parsed subnets are cached.
+     * 
+     * @param prefix
+     */
+    public static SubnetPattern forPrefix(String prefix) {
+        SubnetPattern subnet = PREFIX_CACHE.get(prefix);
+        if (subnet == null) {
+            int slash = prefix.indexOf('/');
+            if (slash == -1) {
+                return null;
+            }
+            byte[] patternBytes = IpAddresses.parse(prefix, 0, slash);
+            int bits;
+            try {
+                bits = Integer.parseInt(prefix.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (patternBytes == null || bits < 0 || bits > patternBytes.length * 8) {
+                return null;
+            }
+            byte[] maskBytes = new byte[patternBytes.length];
+            for (int i = 0; i < maskBytes.length; i++) {
+                int remaining = Math.min(8, Math.max(0, bits - i * 8));
+                maskBytes[i] = (byte) (0xFF00 >> remaining);
+            }
+            subnet = new SubnetPattern(patternBytes, maskBytes);
+            PREFIX_CACHE.put(prefix, subnet);
+        }
+        return subnet;
+    }
 
     /**
      * Creates a new subnet representation using the syntax of PAC function isInNet(host, pattern, mask) in bytes.
@@ -51,6 +113,13 @@ public class SubnetPattern {
                ((in[2 + (4 * offset)] & 0xFF) << 8) | ((in[3 + (4 * offset)] & 0xFF) << 0);
     }
 
+    /**
+     * Returns the length in bytes of the addresses this subnet applies to, i.e. 4 for IPv4 and 16 for IPv6.
+     */
+    public int getAddressLength() {
+        return subnetMask.length * 4;
+    }
+
     /**
      * Returns true if the given address is part of the subnet.
      * 
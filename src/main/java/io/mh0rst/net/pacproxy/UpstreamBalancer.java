@@ -0,0 +1,306 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+import org.littleshoot.proxy.TransportProtocol;
+
+import io.netty.handler.codec.http.HttpObject;
+
+/**
+ * Spreads requests across the upstream proxies returned by the PAC file. Only the order of the PROXY entries is
+ * changed, DIRECT entries keep their position.
+ */
+public class UpstreamBalancer {
+
+    /**
+     * The supported ways to choose the upstream proxy.
+     */
+    public enum Strategy {
+        /**
+         * Rotates the upstreams with each request.
+         */
+        ROUND_ROBIN("rr"),
+        /**
+         * Prefers the upstreams with the fewest open connections.
+         */
+        LEAST_CONNECTIONS("least"),
+        /**
+         * Always prefers the same upstream for a host, so upstream caches are used well.
+         */
+        HASH("hash");
+
+        private final String optionName;
+
+        private Strategy(String optionName) {
+            this.optionName = optionName;
+        }
+
+        /**
+         * Returns the name of the strategy on the command line.
+         */
+        public String getOptionName() {
+            return optionName;
+        }
+
+        /**
+         * Returns the strategy with the given name on the command line or null if there is none.
+         * 
+         * @param optionName
+         */
+        public static Strategy forOptionName(String optionName) {
+            for (Strategy strategy : values()) {
+                if (strategy.optionName.equals(optionName)) {
+                    return strategy;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Strategy strategy;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new balancer.
+     * 
+     * @param strategy
+     */
+    public UpstreamBalancer(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns the strategy of this balancer.
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Returns the given proxies in the order they should be tried for a new connection to the given host. The
+     * upstreams are wrapped to count the connection while it is open.
+     * 
+     * @param proxies
+     * @param host
+     */
+    public List<ChainedProxy> order(List<ChainedProxy> proxies, String host) {
+        List<ChainedProxy> upstreams = null;
+        for (ChainedProxy proxy : proxies) {
+            if (proxy != ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION) {
+                if (upstreams == null) {
+                    upstreams = new ArrayList<>(proxies.size());
+                }
+                upstreams.add(proxy);
+            }
+        }
+        if (upstreams == null) {
+            return proxies;
+        }
+        if (upstreams.size() > 1) {
+            sort(upstreams, host);
+        }
+        List<ChainedProxy> result = new ArrayList<>(proxies.size());
+        int upstream = 0;
+        for (ChainedProxy proxy : proxies) {
+            if (proxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION) {
+                result.add(proxy);
+            } else {
+                result.add(new Connection(upstreams.get(upstream++)));
+            }
+        }
+        return result;
+    }
+
+    private void sort(List<ChainedProxy> upstreams, String host) {
+        switch (strategy) {
+        case ROUND_ROBIN:
+            Collections.rotate(upstreams, -Math.floorMod(next.getAndIncrement(), upstreams.size()));
+            break;
+        case LEAST_CONNECTIONS:
+            // rotate first, so upstreams with the same number of connections take turns
+            Collections.rotate(upstreams, -Math.floorMod(next.getAndIncrement(), upstreams.size()));
+            int[] counts = new int[upstreams.size()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = counterOf(upstreams.get(i).getChainedProxyAddress()).get();
+            }
+            sortByKey(upstreams, counts, false);
+            break;
+        case HASH:
+            int[] scores = new int[upstreams.size()];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = score(host, upstreams.get(i).getChainedProxyAddress());
+            }
+            sortByKey(upstreams, scores, true);
+            break;
+        default:
+            throw new IllegalStateException("Unknown strategy " + strategy);
+        }
+    }
+
+    /**
+     * Returns the number of open connections per upstream.
+     */
+    Map<String, AtomicInteger> getConnections() {
+        return Collections.unmodifiableMap(connections);
+    }
+
+    private AtomicInteger counterOf(InetSocketAddress upstream) {
+        String key = upstream.getHostString() + ":" + upstream.getPort();
+        AtomicInteger counter = connections.get(key);
+        if (counter == null) {
+            counter = connections.computeIfAbsent(key, k -> new AtomicInteger());
+        }
+        return counter;
+    }
+
+    /**
+     * Rendezvous hashing: each host prefers the upstream with the highest score, if an upstream is removed from the
+     * PAC result only its hosts move to other upstreams.
+     */
+    private static int score(String host, InetSocketAddress upstream) {
+        int hash = 0x811c9dc5;
+        hash = fnv(hash, host);
+        hash = fnv(hash, upstream.getHostString());
+        hash = (hash ^ upstream.getPort()) * 0x01000193;
+        // final mix, FNV alone distributes the high bits poorly
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private static int fnv(int hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        return (hash ^ 0xff) * 0x01000193;
+    }
+
+    private static void sortByKey(List<ChainedProxy> upstreams, int[] keys, boolean descending) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Comparator<Integer> byKey = Comparator.comparingInt(i -> keys[i]);
+        Arrays.sort(order, descending ? byKey.reversed() : byKey);
+        List<ChainedProxy> sorted = new ArrayList<>(upstreams.size());
+        for (Integer i : order) {
+            sorted.add(upstreams.get(i));
+        }
+        for (int i = 0; i < sorted.size(); i++) {
+            upstreams.set(i, sorted.get(i));
+        }
+    }
+
+    /**
+     * One connection of LittleProxy to an upstream. LittleProxy also reports the close of connections which failed,
+     * so only connections which succeeded are counted.
+     */
+    private class Connection implements ChainedProxy {
+
+        private final ChainedProxy upstream;
+
+        private volatile InetSocketAddress counted;
+
+        Connection(ChainedProxy upstream) {
+            this.upstream = upstream;
+        }
+
+        @Override
+        public InetSocketAddress getChainedProxyAddress() {
+            return upstream.getChainedProxyAddress();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return upstream.getLocalAddress();
+        }
+
+        @Override
+        public TransportProtocol getTransportProtocol() {
+            return upstream.getTransportProtocol();
+        }
+
+        @Override
+        public boolean requiresEncryption() {
+            return upstream.requiresEncryption();
+        }
+
+        @Override
+        public SSLEngine newSslEngine() {
+            return upstream.newSslEngine();
+        }
+
+        @Override
+        public SSLEngine newSslEngine(String peerHost, int peerPort) {
+            return upstream.newSslEngine(peerHost, peerPort);
+        }
+
+        @Override
+        public void filterRequest(HttpObject httpObject) {
+            upstream.filterRequest(httpObject);
+        }
+
+        @Override
+        public void connectionSucceeded() {
+            upstream.connectionSucceeded();
+            InetSocketAddress address = upstream.getChainedProxyAddress();
+            counterOf(address).incrementAndGet();
+            counted = address;
+        }
+
+        @Override
+        public void connectionFailed(Throwable cause) {
+            upstream.connectionFailed(cause);
+        }
+
+        @Override
+        public void disconnected() {
+            upstream.disconnected();
+            InetSocketAddress address = counted;
+            if (address != null) {
+                counted = null;
+                counterOf(address).decrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return upstream.toString();
+        }
+    }
+}
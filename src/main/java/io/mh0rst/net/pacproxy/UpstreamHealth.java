@@ -0,0 +1,185 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the health of upstream proxies based on the outcome of connection attempts. An upstream whose connection
+ * failed is considered down for a while and moved behind the healthy entries of PAC results, so requests do not wait
+ * for its connect timeout first. After the down time one request may try it again, optional active probes restore it
+ * as soon as it accepts TCP connections.
+ */
+public class UpstreamHealth {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpstreamHealth.class);
+
+    private static final int PROBE_TIMEOUT_MILLIS = 2000;
+
+    private final long downNanos;
+
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new health tracker.
+     * 
+     * @param downSeconds Time an upstream is considered down after a failed connection
+     */
+    public UpstreamHealth(int downSeconds) {
+        this.downNanos = TimeUnit.SECONDS.toNanos(downSeconds);
+    }
+
+    /**
+     * Starts probing upstreams which are down periodically.
+     * 
+     * @param intervalSeconds
+     */
+    public void startProbes(int intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PacProxy-Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::probe, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records a successful connection to the given upstream.
+     * 
+     * @param upstream
+     */
+    public void connectionSucceeded(InetSocketAddress upstream) {
+        State state = states.get(key(upstream));
+        if (state != null && state.downUntil.getAndSet(0) != 0) {
+            LOG.info("Upstream proxy " + key(upstream) + " is up again");
+        }
+    }
+
+    /**
+     * Records a failed connection to the given upstream.
+     * 
+     * @param upstream
+     * @param cause
+     */
+    public void connectionFailed(InetSocketAddress upstream, Throwable cause) {
+        State state = states.computeIfAbsent(key(upstream), key -> new State());
+        if (state.downUntil.getAndSet(System.nanoTime() + downNanos) == 0) {
+            LOG.warn("Upstream proxy " + key(upstream) + " is down: " + cause);
+        }
+    }
+
+    /**
+     * Returns true if the given upstream is considered down. Once its down time is over, the first caller gets false
+     * to try the upstream again, while it stays down for all others until the outcome of that attempt is known.
+     * 
+     * @param upstream
+     */
+    public boolean isDown(InetSocketAddress upstream) {
+        State state = states.get(key(upstream));
+        if (state == null) {
+            return false;
+        }
+        long downUntil = state.downUntil.get();
+        if (downUntil == 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        return downUntil - now > 0 || !state.downUntil.compareAndSet(downUntil, now + downNanos);
+    }
+
+    /**
+     * Adds the given proxies to the target, upstreams which are down after all others.
+     * 
+     * @param proxies
+     * @param target
+     */
+    public void addInOrder(List<ChainedProxy> proxies, Collection<ChainedProxy> target) {
+        List<ChainedProxy> down = null;
+        for (ChainedProxy proxy : proxies) {
+            InetSocketAddress upstream = proxy.getChainedProxyAddress();
+            if (upstream != null && isDown(upstream)) {
+                if (down == null) {
+                    down = new ArrayList<>(proxies.size());
+                }
+                down.add(proxy);
+            } else {
+                target.add(proxy);
+            }
+        }
+        if (down != null) {
+            target.addAll(down);
+        }
+    }
+
+    /**
+     * Returns the upstreams which had connection failures, mapped to whether they are currently up.
+     */
+    Map<String, Boolean> getStates() {
+        Map<String, Boolean> result = new ConcurrentHashMap<>();
+        for (Map.Entry<String, State> entry : states.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().downUntil.get() == 0);
+        }
+        return result;
+    }
+
+    private void probe() {
+        for (Map.Entry<String, State> entry : states.entrySet()) {
+            if (entry.getValue().downUntil.get() == 0) {
+                continue;
+            }
+            String upstream = entry.getKey();
+            int separator = upstream.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(upstream.substring(0, separator),
+                                                              Integer.parseInt(upstream.substring(separator + 1)));
+            try (Socket socket = new Socket()) {
+                socket.connect(address, PROBE_TIMEOUT_MILLIS);
+                connectionSucceeded(address);
+            } catch (IOException e) {
+                LOG.debug("Probe of upstream proxy " + upstream + " failed", e);
+            }
+        }
+    }
+
+    private static String key(InetSocketAddress upstream) {
+        return upstream.getHostString() + ":" + upstream.getPort();
+    }
+
+    private static class State {
+
+        /**
+         * System.nanoTime() until which the upstream is down, 0 if it is up.
+         */
+        private final AtomicLong downUntil = new AtomicLong();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * PacProxy - A HTTP proxy driven by a PAC file.
+ * Copyright (C) 2017 Moritz Horstmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.mh0rst.net.pacproxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.proxy.ChainedProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Replays a list of URLs through a {@link PacProxyManager} before the proxy accepts connections, so the script engines
+ * are compiled and the DNS and decision caches are filled when the first real requests arrive. The hosts requested
+ * while running can be saved to replay them on the next start.
+ */
+public class WarmUp {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+    private static final int MAX_RECORDED_HOSTS = 10000;
+
+    private final PacProxyManager manager;
+
+    private final int threads;
+
+    /**
+     * Creates a new warm-up.
+     * 
+     * @param manager
+     * @param threads Number of threads replaying the URLs, should match the number of script engines
+     */
+    public WarmUp(PacProxyManager manager, int threads) {
+        this.manager = manager;
+        this.threads = threads;
+    }
+
+    /**
+     * Replays the URLs of the given file, one per line. Lines without a scheme are taken as host names, lines
+     * starting with # are ignored. Every script engine is borrowed and evaluates all URLs, bypassing the decision
+     * cache, so each of them compiles the PAC file. A final pass through the manager fills the decision cache. The
+     * URLs are kept to warm up the script engines of a reloaded PAC file as well.
+     * 
+     * @param file
+     * @throws IOException if the file cannot be read
+     */
+    public void replay(Path file) throws IOException {
+        List<String> urls = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                urls.add(line.contains("://") ? line : "http://" + line + "/");
+            }
+        }
+        manager.setWarmUpUrls(urls);
+        long start = System.nanoTime();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "PacProxy-WarmUp-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            int failures = manager.warmUpEngines(urls, executor);
+            if (failures > 0) {
+                LOG.warn(failures + " evaluations of the PAC file failed during warm-up");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            executor.shutdown();
+        }
+        Queue<ChainedProxy> proxies = new ArrayDeque<>();
+        for (String url : urls) {
+            manager.lookupChainedProxies(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, url), proxies);
+            proxies.clear();
+        }
+        LOG.info("Warmed up with " + urls.size() + " URLs from " + file + " in " +
+                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Records the hosts requested from now on and writes them to the given file when the JVM shuts down.
+     * 
+     * @param file
+     */
+    public void saveHostsOnShutdown(Path file) {
+        Set<String> hosts = ConcurrentHashMap.newKeySet();
+        manager.setHostRecorder(host -> {
+            if (hosts.size() < MAX_RECORDED_HOSTS) {
+                hosts.add(host);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.write(file, hosts, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                LOG.error("Could not save requested hosts to " + file, e);
+            }
+        }, "PacProxy-WarmUp-Save"));
+    }
+}
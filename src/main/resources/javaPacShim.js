@@ -1,7 +1,11 @@
 /*
  * This is a shim to provide usual PAC functions using the PacFunctions Java class. 
  */
-var PacFunctions = Java.type('io.mh0rst.net.pacproxy.PacFunctions');
+// Nashorn and GraalJS provide Java.type, Rhino only the Packages object. Rhino stores global variables as Java
+// objects, which would turn the class into a java.lang.Class blocked by the sandbox, so it is kept behind a script
+// object.
+var PacFunctions = typeof Java !== 'undefined' && Java.type ? Java.type('io.mh0rst.net.pacproxy.PacFunctions')
+		: Object.create(Packages.io.mh0rst.net.pacproxy.PacFunctions);
 
 function log(what) {
 	return PacFunctions.log(what);
@@ -43,6 +47,16 @@ function shExpMatch(str, shexp) {
 	return PacFunctions.shExpMatch(str, shexp);
 }
 
+// Start of PacProxy extensions
+
+function registerDomainList(listId, domains) {
+	return PacFunctions.registerDomainList(listId, domains);
+}
+
+function dnsDomainIsAny(host, listId) {
+	return PacFunctions.dnsDomainIsAny(host, listId);
+}
+
 // Start of PAC extensions
 // https://blogs.msdn.microsoft.com/wndp/2006/07/13/extensions-to-the-navigator-proxy-auto-config-file-format-specification-to-support-ipv6-v0-9/
 
@@ -51,11 +65,11 @@ function isResolvableEx(host) {
 }
 
 function isInNetEx(address, prefix) {
-	// TODO
+	return PacFunctions.isInNetEx(address, prefix);
 }
 
 function dnsResolveEx(host) {
-	// TODO
+	return PacFunctions.dnsResolveEx(host);
 }
 
 function myIPAddressEx() {
@@ -63,7 +77,8 @@ function myIPAddressEx() {
 }
 
 function sortIpAddressList(addressList) {
-	// TODO
+	var sorted = PacFunctions.sortIpAddressList(addressList);
+	return sorted === null ? false : sorted;
 }
 
 function getClientVersion() {